@@ -0,0 +1,35 @@
+package org.sharnalk;
+
+import java.security.PublicKey;
+import java.util.UUID;
+
+/**
+ * Builds the wallets and transactions used by the benchmarks.
+ * The benchmarks live in the org.sharnalk package so they can prepare the state through package private methods.
+ */
+final class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * A wallet holding utxoCount UTXOs of amountEach units, all of them known by the Miner
+     */
+    static Wallet walletWithUTXOs(int utxoCount, long amountEach) throws Exception {
+        var wallet = new Wallet(amountEach);
+        for (int i = 1; i < utxoCount; i++) {
+            wallet.addUTXO(newUTXO(amountEach, wallet.getPublicKey()));
+        }
+        return wallet;
+    }
+
+    /**
+     * A UTXO with a random txId, registered in the Miner UTXO set
+     */
+    static UTXO newUTXO(long amount, PublicKey owner) throws Exception {
+        var utxo = new UTXO(amount, owner);
+        utxo.setTxId(Wallet.asBytes(UUID.randomUUID()));
+        Miner.getInstance().setGlobalUnspentOutputs(utxo);
+        return utxo;
+    }
+}
@@ -0,0 +1,21 @@
+package org.sharnalk;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so each result comes with its allocation rate (gc.alloc.rate.norm
+ * is the number of bytes allocated per operation). The usual JMH options can be given, for example a regexp
+ * to run only some benchmarks : java -jar benchmarks.jar UTXOSet
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        var options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,51 @@
+package org.sharnalk;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the block hash (what the miner computes for each nonce) and of building a block,
+ * for several numbers of transactions per block.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockHashBenchmark {
+    @Param({"1", "100", "1000"})
+    int transactionsPerBlock;
+
+    private Block block;
+    private final List<Transaction> transactions = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        var sender = BenchmarkFixtures.walletWithUTXOs(transactionsPerBlock, 1);
+        var recipient = new Wallet(1);
+        block = new Block();
+        for (int i = 0; i < transactionsPerBlock; i++) {
+            var tx = sender.createTransactions(recipient.getPublicKey(), 1);
+            transactions.add(tx);
+            block.addTransaction(tx);
+        }
+    }
+
+    @Benchmark
+    public byte[] calculateBlockHash() {
+        return block.CalculateBlockHash();
+    }
+
+    @Benchmark
+    public Block buildBlock() {
+        var newBlock = new Block(block.getPreviousHashCode());
+        for (var tx : transactions) {
+            newBlock.addTransaction(tx);
+        }
+        return newBlock;
+    }
+}
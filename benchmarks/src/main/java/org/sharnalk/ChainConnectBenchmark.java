@@ -0,0 +1,104 @@
+package org.sharnalk;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of connecting a chain of mined blocks to a fresh UTXO set and BlockStore : one block at a time
+ * (ChainValidator, then one append and one fsync per block) against BlockBatchConnector (one UTXO update
+ * and one fsync per batch). The time depends a lot on the disk, the fsyncs are most of the first case.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ChainConnectBenchmark {
+    private static final int DIFFICULTY_BITS = 4;
+
+    @Param({"200"})
+    int blockCount;
+
+    @Param({"20"})
+    int transactionsPerBlock;
+
+    @Param({"64"})
+    int batchSize;
+
+    private final List<Block> chain = new ArrayList<>();
+    private List<UTXO> initialUTXOs;
+    private UTXOSet utxoSet;
+    private Path directory;
+    private BlockStore blockStore;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        List<Wallet> wallets = new ArrayList<>();
+        for (int i = 0; i < transactionsPerBlock; i++) {
+            wallets.add(new Wallet(Amount.ofCoins(100), SignatureScheme.ED25519));
+        }
+        initialUTXOs = Miner.getInstance().getGlobalUnspentOutputs().snapshot();
+        try (var node = new Node(DIFFICULTY_BITS, transactionsPerBlock)) {
+            for (int b = 0; b < blockCount; b++) {
+                for (int i = 0; i < wallets.size(); i++) {
+                    var recipient = wallets.get((i + b + 1) % wallets.size());
+                    node.submit(wallets.get(i).createTransactions(recipient.getPublicKey(), 1_000, 1));
+                }
+                chain.add(node.mineBlock());
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void freshState() throws IOException {
+        utxoSet = new UTXOSet();
+        for (var utxo : initialUTXOs) {
+            utxoSet.add(utxo);
+        }
+        directory = Files.createTempDirectory("chain-connect");
+        blockStore = new BlockStore(directory);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteStore() throws IOException {
+        blockStore.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (var file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public ChainValidationResult oneByOne() throws IOException {
+        var validator = new ChainValidator(utxoSet, DIFFICULTY_BITS);
+        try {
+            var result = validator.validate(chain);
+            for (var block : chain) {
+                blockStore.append(block);
+            }
+            return result;
+        } finally {
+            validator.shutdown();
+        }
+    }
+
+    @Benchmark
+    public ChainValidationResult batched() throws IOException {
+        var connector = new BlockBatchConnector(utxoSet, blockStore, DIFFICULTY_BITS, batchSize);
+        try {
+            return connector.connect(chain);
+        } finally {
+            connector.shutdown();
+        }
+    }
+}
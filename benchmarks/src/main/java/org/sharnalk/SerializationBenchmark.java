@@ -0,0 +1,57 @@
+package org.sharnalk;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a transaction and a UTXO into bytes, for several numbers of inputs per transaction.
+ * Transaction.getTransactionDataBytes() and getTxId() keep their result, so the canonical encoding and the txId
+ * are measured through encodeData(), which builds the encoding each time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"1", "10", "100"})
+    int inputsPerTransaction;
+
+    private Transaction transaction;
+    private UTXO utxo;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        var sender = BenchmarkFixtures.walletWithUTXOs(inputsPerTransaction, 1);
+        var recipient = new Wallet(1);
+        transaction = sender.createTransactions(recipient.getPublicKey(), inputsPerTransaction);
+        utxo = transaction.getOutputs().get(0);
+        buffer = ByteBuffer.allocate(BinaryCodec.encodedSize(transaction));
+    }
+
+    @Benchmark
+    public byte[] encodeTransactionData() {
+        return transaction.encodeData();
+    }
+
+    @Benchmark
+    public byte[] computeTxId() {
+        return Hashing.doubleSha256(transaction.encodeData());
+    }
+
+    @Benchmark
+    public byte[] utxoGetBytes() {
+        return utxo.getBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeTransaction() {
+        buffer.clear();
+        BinaryCodec.encode(transaction, buffer);
+        return buffer;
+    }
+}
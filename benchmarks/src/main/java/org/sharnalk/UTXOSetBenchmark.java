@@ -0,0 +1,66 @@
+package org.sharnalk;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPairGenerator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the UTXO set operations for several set sizes : lookup of an existing UTXO and add then remove.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UTXOSetBenchmark {
+    private static final int LOOKUP_KEYS = 1 << 16;
+
+    @Param({"10000", "1000000"})
+    int setSize;
+
+    private UTXOSet set;
+    private OutPoint[] present;
+    private UTXO extra;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        var keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        var owner = keyGen.generateKeyPair().getPublic();
+        var random = new Random(42);
+        set = new UTXOSet();
+        present = new OutPoint[LOOKUP_KEYS];
+        for (int i = 0; i < setSize; i++) {
+            var utxo = randomUTXO(owner, random);
+            set.add(utxo);
+            if (i < LOOKUP_KEYS) present[i] = utxo.getOutPoint();
+        }
+        for (int i = setSize; i < LOOKUP_KEYS; i++) {
+            present[i] = present[i % setSize];
+        }
+        extra = randomUTXO(owner, random);
+    }
+
+    private static UTXO randomUTXO(java.security.PublicKey owner, Random random) {
+        var txId = new byte[32];
+        random.nextBytes(txId);
+        var utxo = new UTXO(1, owner);
+        utxo.setTxId(txId);
+        return utxo;
+    }
+
+    @Benchmark
+    public UTXO lookup() {
+        return set.get(present[next++ & (LOOKUP_KEYS - 1)]);
+    }
+
+    @Benchmark
+    public UTXO addAndRemove() {
+        set.add(extra);
+        return set.remove(extra.getOutPoint());
+    }
+}
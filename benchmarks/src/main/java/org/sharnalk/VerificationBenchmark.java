@@ -0,0 +1,70 @@
+package org.sharnalk;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the Miner verification, one transaction at a time and as a batch.
+ * After each call the transactions are undone in the UTXO set (outputs spent back into the inputs),
+ * so every call verifies the same valid transactions.
+ * Verifying the same transactions again hits the SignatureCache : with cached=false the cache is cleared before
+ * each call so the signatures are really checked, with cached=true it is the cost of a block validation after
+ * the mempool has seen its transactions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VerificationBenchmark {
+    @Param({"1", "64", "512"})
+    int batchSize;
+
+    @Param({"false", "true"})
+    boolean cached;
+
+    private Miner miner;
+    private final List<Transaction> batch = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        miner = Miner.getInstance();
+        var sender = BenchmarkFixtures.walletWithUTXOs(batchSize, 1);
+        var recipient = new Wallet(1);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(sender.createTransactions(recipient.getPublicKey(), 1));
+        }
+    }
+
+    @Benchmark
+    public boolean verifyTransaction() throws Exception {
+        clearCache();
+        var tx = batch.get(0);
+        boolean valid = miner.verifyTransaction(tx);
+        undo(tx);
+        return valid;
+    }
+
+    @Benchmark
+    public List<TransactionVerdict> verifyTransactions() {
+        clearCache();
+        var verdicts = miner.verifyTransactions(batch);
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            undo(batch.get(i));
+        }
+        return verdicts;
+    }
+
+    // A few hundred entries at most, next to the signature checks it costs nothing
+    private void clearCache() {
+        if (!cached) miner.getSignatureCache().clear();
+    }
+
+    private void undo(Transaction tx) {
+        miner.getGlobalUnspentOutputs().spend(tx.getOutputs(), tx.getInputs());
+    }
+}
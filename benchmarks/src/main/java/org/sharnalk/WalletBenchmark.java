@@ -0,0 +1,41 @@
+package org.sharnalk;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of Wallet.createTransactions : UTXO selection, building the data and the RSA signature.
+ * The transaction spends half of the wallet, its inputs are given back after each call so the wallet never empties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalletBenchmark {
+    @Param({"1", "100", "1000"})
+    int utxosPerWallet;
+
+    private Wallet sender;
+    private PublicKey recipient;
+    private long amount;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sender = BenchmarkFixtures.walletWithUTXOs(utxosPerWallet, Amount.ofCoins(1));
+        recipient = new Wallet(1).getPublicKey();
+        amount = Math.max(Amount.UNITS_PER_COIN / 2, utxosPerWallet * Amount.UNITS_PER_COIN / 2);
+    }
+
+    @Benchmark
+    public Transaction createTransactions() throws Exception {
+        var tx = sender.createTransactions(recipient, amount);
+        for (var input : tx.getInputs()) {
+            sender.addUTXO(input);
+        }
+        return tx;
+    }
+}
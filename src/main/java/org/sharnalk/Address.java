@@ -0,0 +1,53 @@
+package org.sharnalk;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Compact identifier of a wallet : the key hash of its public key (see Hashing.keyHash), shown as 40 hex characters.
+ * Much shorter than the Base64 of the key, and reading it back is a plain hex decoding, no KeyFactory needed.
+ */
+public final class Address {
+    private final byte[] keyHash;
+    private final int hash;
+
+    public Address(byte[] keyHash) {
+        if (keyHash.length != Hashing.KEY_HASH_SIZE) throw new IllegalArgumentException("An address is " + Hashing.KEY_HASH_SIZE + " bytes.");
+        this.keyHash = keyHash;
+        this.hash = Arrays.hashCode(keyHash);
+    }
+
+    public static Address of(PublicKey publicKey) {
+        return new Address(Hashing.keyHash(publicKey));
+    }
+
+    /**
+     * Read an address typed in the console
+     */
+    public static Address fromString(String address) {
+        return new Address(HexFormat.of().parseHex(address.trim()));
+    }
+
+    public byte[] getKeyHash() {
+        return keyHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Address)) return false;
+        var other = (Address) o;
+        return hash == other.hash && Arrays.equals(keyHash, other.keyHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return HexFormat.of().formatHex(keyHash);
+    }
+}
@@ -0,0 +1,55 @@
+package org.sharnalk;
+
+import java.math.BigDecimal;
+
+/**
+ * Amounts are a whole number of base units in a long (like the satoshi for Bitcoin), 1 coin = 100 000 000 units.
+ * A long has no rounding problem, always has the same 8 bytes, and the additions are checked :
+ * an amount that would overflow throws an ArithmeticException instead of wrapping around.
+ * Coins with decimals are only used to read and print amounts for the user, see parse and format.
+ */
+public final class Amount {
+    public static final long UNITS_PER_COIN = 100_000_000L;
+    private static final int DECIMALS = 8;
+
+    private Amount() {
+    }
+
+    /**
+     * A whole number of coins in units
+     */
+    public static long ofCoins(long coins) {
+        return Math.multiplyExact(coins, UNITS_PER_COIN);
+    }
+
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    public static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    /**
+     * Read an amount of coins typed by the user, like "12.5", in units
+     *
+     * @throws IllegalArgumentException If it is not a number, is negative, or has more than 8 decimals.
+     */
+    public static long parse(String coins) {
+        try {
+            var units = new BigDecimal(coins.trim()).movePointRight(DECIMALS).longValueExact();
+            if (units < 0) throw new IllegalArgumentException("Amount can't be negative.");
+            return units;
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid amount : " + coins);
+        }
+    }
+
+    /**
+     * The amount in coins, without useless zeros : 1250000000 gives "12.5"
+     */
+    public static String format(long units) {
+        var coins = BigDecimal.valueOf(units, DECIMALS).stripTrailingZeros();
+        return coins.scale() < 0 ? coins.setScale(0).toPlainString() : coins.toPlainString();
+    }
+}
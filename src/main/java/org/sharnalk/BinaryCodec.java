@@ -0,0 +1,315 @@
+package org.sharnalk;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+/**
+ * Compact binary format for Block, Transaction and UTXO, used to store them and to send them to other nodes.
+ *
+ * Each top level object starts with the format version (1 byte). The owners of the outputs are written as their key
+ * hash (20 bytes instead of ~294 for an RSA key). The sender of a transaction is written as its whole public key
+ * (scheme and X.509 encoding) : it is needed to check the signature, and like the inputs of Bitcoin it makes
+ * everything stored or relayed decodable by anyone, without knowing the wallets. The decoded UTXOs and recipients
+ * only have their key hash (UTXO.getPublicKey() and Transaction.getRecipientPublicKey() are null).
+ * Amounts are written as their long number of base units (see Amount), counts and lengths as varints.
+ * Everything is written directly in the ByteBuffer given by the caller, use the encodedSize methods to size it.
+ *
+ *  UTXO        : amount (8) | outputIndex (varint) | txId length (varint) | txId | keyHash (20)
+ *  Transaction : sender scheme (1) | sender key length (varint) | sender key | recipientKeyHash (20) | timestamp (8)
+ *                | input count (varint) | inputs (UTXO)
+ *                | output count (varint) | outputs (amount (8) | keyHash (20)) | signature length (varint) | signature
+ *  Block       : header (80, see Block) | transaction count (varint) | transactions
+ *  CompactBlock: header (80) | salt (8) | transaction count (varint) | short IDs (6 each, see CompactBlock)
+ *
+ * The outputs don't carry their txId and index : all the outputs of a transaction have the same txId and their
+ * index is their position, both are rebuilt by the decoder the same way Wallet builds them.
+ */
+public final class BinaryCodec {
+    public static final byte FORMAT_VERSION = 2;
+
+    private BinaryCodec() {
+    }
+
+    // ---- Block
+
+    public static int encodedSize(Block block) {
+        return 1 + blockSize(block);
+    }
+
+    public static void encode(Block block, ByteBuffer buffer) {
+        buffer.put(FORMAT_VERSION);
+        writeBlock(block, buffer);
+    }
+
+    public static byte[] encode(Block block) {
+        var buffer = ByteBuffer.allocate(encodedSize(block));
+        encode(block, buffer);
+        return buffer.array();
+    }
+
+    public static Block decodeBlock(ByteBuffer buffer) {
+        checkVersion(buffer);
+        return readBlock(buffer);
+    }
+
+    // ---- Transaction
+
+    public static int encodedSize(Transaction tx) {
+        return 1 + transactionSize(tx);
+    }
+
+    public static void encode(Transaction tx, ByteBuffer buffer) {
+        buffer.put(FORMAT_VERSION);
+        writeTransaction(tx, buffer);
+    }
+
+    public static byte[] encode(Transaction tx) {
+        var buffer = ByteBuffer.allocate(encodedSize(tx));
+        encode(tx, buffer);
+        return buffer.array();
+    }
+
+    public static Transaction decodeTransaction(ByteBuffer buffer) {
+        checkVersion(buffer);
+        return readTransaction(buffer);
+    }
+
+    // ---- CompactBlock
+
+    public static int encodedSize(CompactBlock compactBlock) {
+        int count = compactBlock.getTransactionCount();
+        return 1 + Block.HEADER_SIZE + Long.BYTES + varintSize(count) + count * CompactBlock.SHORT_ID_SIZE;
+    }
+
+    public static void encode(CompactBlock compactBlock, ByteBuffer buffer) {
+        buffer.put(FORMAT_VERSION);
+        buffer.put(compactBlock.getHeaderBytes());
+        buffer.putLong(compactBlock.getSalt());
+        writeVarint(compactBlock.getTransactionCount(), buffer);
+        for (int i = 0; i < compactBlock.getTransactionCount(); i++) {
+            long shortId = compactBlock.getShortId(i);
+            buffer.putShort((short) (shortId >>> 32));
+            buffer.putInt((int) shortId);
+        }
+    }
+
+    public static byte[] encode(CompactBlock compactBlock) {
+        var buffer = ByteBuffer.allocate(encodedSize(compactBlock));
+        encode(compactBlock, buffer);
+        return buffer.array();
+    }
+
+    public static CompactBlock decodeCompactBlock(ByteBuffer buffer) {
+        checkVersion(buffer);
+        var previousHashCode = readBytes(buffer, Sha256.DIGEST_SIZE);
+        var merkleRoot = readBytes(buffer, Sha256.DIGEST_SIZE);
+        long timestamp = buffer.getLong();
+        int difficultyBits = buffer.getInt();
+        int nonce = buffer.getInt();
+        long salt = buffer.getLong();
+        int count = readVarint(buffer);
+        if (count < 0 || count > buffer.remaining() / CompactBlock.SHORT_ID_SIZE) throw new IllegalArgumentException("Invalid transaction count " + count);
+        var shortIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            shortIds[i] = ((buffer.getShort() & 0xFFFFL) << 32) | (buffer.getInt() & 0xFFFFFFFFL);
+        }
+        return new CompactBlock(previousHashCode, merkleRoot, timestamp, difficultyBits, nonce, salt, shortIds);
+    }
+
+    // ---- UTXO
+
+    public static int encodedSize(UTXO utxo) {
+        return 1 + utxoSize(utxo);
+    }
+
+    public static void encode(UTXO utxo, ByteBuffer buffer) {
+        buffer.put(FORMAT_VERSION);
+        writeUTXO(utxo, buffer);
+    }
+
+    public static byte[] encode(UTXO utxo) {
+        var buffer = ByteBuffer.allocate(encodedSize(utxo));
+        encode(utxo, buffer);
+        return buffer.array();
+    }
+
+    public static UTXO decodeUTXO(ByteBuffer buffer) {
+        checkVersion(buffer);
+        return readUTXO(buffer);
+    }
+
+    // ---- Sizes
+
+    private static int blockSize(Block block) {
+        int size = Block.HEADER_SIZE + varintSize(block.getTransactions().size());
+        for (var tx : block.getTransactions()) {
+            size += transactionSize(tx);
+        }
+        return size;
+    }
+
+    private static int transactionSize(Transaction tx) {
+        int keySize = tx.getSenderKeyBytes().length;
+        int size = 1 + varintSize(keySize) + keySize + Hashing.KEY_HASH_SIZE + Long.BYTES;
+        size += varintSize(tx.getInputs().size());
+        for (var input : tx.getInputs()) {
+            size += utxoSize(input);
+        }
+        size += varintSize(tx.getOutputs().size());
+        size += tx.getOutputs().size() * (Long.BYTES + Hashing.KEY_HASH_SIZE);
+        size += varintSize(tx.getSignature().length) + tx.getSignature().length;
+        return size;
+    }
+
+    static int utxoSize(UTXO utxo) {
+        return Long.BYTES
+                + varintSize(utxo.getOutputIndex())
+                + varintSize(utxo.getTxId().length) + utxo.getTxId().length
+                + Hashing.KEY_HASH_SIZE;
+    }
+
+    // ---- Writers
+
+    private static void writeBlock(Block block, ByteBuffer buffer) {
+        buffer.put(block.getPreviousHashCode());
+        buffer.put(block.getMerkleRoot());
+        buffer.putLong(block.getTimestamp());
+        buffer.putInt(block.getDifficultyBits());
+        buffer.putInt(block.getNonce());
+        writeVarint(block.getTransactions().size(), buffer);
+        for (var tx : block.getTransactions()) {
+            writeTransaction(tx, buffer);
+        }
+    }
+
+    private static void writeTransaction(Transaction tx, ByteBuffer buffer) {
+        var senderKey = tx.getSenderKeyBytes();
+        buffer.put((byte) SignatureScheme.of(tx.getSenderPublicKey()).ordinal());
+        writeVarint(senderKey.length, buffer);
+        buffer.put(senderKey);
+        buffer.put(tx.getRecipientKeyHash());
+        buffer.putLong(tx.getTimestamp());
+        writeVarint(tx.getInputs().size(), buffer);
+        for (var input : tx.getInputs()) {
+            writeUTXO(input, buffer);
+        }
+        writeVarint(tx.getOutputs().size(), buffer);
+        for (var output : tx.getOutputs()) {
+            buffer.putLong(output.getAmount());
+            buffer.put(output.getKeyHash());
+        }
+        writeVarint(tx.getSignature().length, buffer);
+        buffer.put(tx.getSignature());
+    }
+
+    static void writeUTXO(UTXO utxo, ByteBuffer buffer) {
+        buffer.putLong(utxo.getAmount());
+        writeVarint(utxo.getOutputIndex(), buffer);
+        writeVarint(utxo.getTxId().length, buffer);
+        buffer.put(utxo.getTxId());
+        buffer.put(utxo.getKeyHash());
+    }
+
+    // ---- Readers
+
+    private static Block readBlock(ByteBuffer buffer) {
+        var previousHashCode = readBytes(buffer, Sha256.DIGEST_SIZE);
+        var merkleRoot = readBytes(buffer, Sha256.DIGEST_SIZE);
+        long timestamp = buffer.getLong();
+        int difficultyBits = buffer.getInt();
+        int nonce = buffer.getInt();
+        var block = new Block(previousHashCode, timestamp, difficultyBits, nonce);
+        int count = readVarint(buffer);
+        for (int i = 0; i < count; i++) {
+            block.addTransaction(readTransaction(buffer));
+        }
+        if (!Arrays.equals(merkleRoot, block.getMerkleRoot())) {
+            throw new IllegalArgumentException("Merkle root does not match the transactions of the block.");
+        }
+        block.setProofOfWork(nonce, block.CalculateBlockHash());
+        return block;
+    }
+
+    private static Transaction readTransaction(ByteBuffer buffer) {
+        var sender = readPublicKey(buffer);
+        var recipient = readBytes(buffer, Hashing.KEY_HASH_SIZE);
+        var tx = new Transaction(sender, recipient, buffer.getLong());
+        int inputCount = readVarint(buffer);
+        for (int i = 0; i < inputCount; i++) {
+            tx.addToInputs(readUTXO(buffer));
+        }
+        int outputCount = readVarint(buffer);
+        for (int i = 0; i < outputCount; i++) {
+            long amount = buffer.getLong();
+            tx.addToOutputs(new UTXO(amount, readBytes(buffer, Hashing.KEY_HASH_SIZE)));
+        }
+        tx.setSignature(readBytes(buffer, readVarint(buffer)));
+        // Same as Wallet.createTransactions : the outputs get the txId, the hash of the canonical encoding
+        tx.markOutputsWithTxId(tx.getTxId());
+        return tx;
+    }
+
+    static UTXO readUTXO(ByteBuffer buffer) {
+        long amount = buffer.getLong();
+        int outputIndex = readVarint(buffer);
+        var txId = readBytes(buffer, readVarint(buffer));
+        var utxo = new UTXO(amount, readBytes(buffer, Hashing.KEY_HASH_SIZE));
+        utxo.setOutputIndex(outputIndex);
+        utxo.setTxId(txId);
+        return utxo;
+    }
+
+    private static PublicKey readPublicKey(ByteBuffer buffer) {
+        int scheme = buffer.get();
+        if (scheme < 0 || scheme >= SignatureScheme.values().length) throw new IllegalArgumentException("Unknown signature scheme " + scheme);
+        var encoded = readBytes(buffer, readVarint(buffer));
+        try {
+            return SignatureScheme.values()[scheme].decodePublicKey(encoded);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid public key.", e);
+        }
+    }
+
+    private static void checkVersion(ByteBuffer buffer) {
+        byte version = buffer.get();
+        if (version != FORMAT_VERSION) throw new IllegalArgumentException("Unsupported format version " + version);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) throw new IllegalArgumentException("Invalid length " + length);
+        var bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    // ---- Varints, 7 bits per byte, the high bit says another byte follows
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void writeVarint(int value, ByteBuffer buffer) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Varint too long.");
+    }
+}
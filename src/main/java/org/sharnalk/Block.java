@@ -1,29 +1,44 @@
 package org.sharnalk;
 
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  *  Block represent a part of the "Blocks Chain"
  *  it's a hashCode of an object composed by transaction hash, previousHash (by the previous block), timestamp and Proof of Work
  *  We use SHA-256 hashing algorithm (expliquer pour le message digest et ce que ca fait dans le code)
+ *
+ *  The hash is not computed on the whole block but on a fixed size header of 80 bytes :
+ *  previousHash (32) | merkleRoot (32) | timestamp (8) | difficultyBits (4) | nonce (4)
+ *  The merkle root commits to all the transactions, so the cost of the hash does not depend on the number of transactions.
  * */
 public class Block {
+    public static final int HEADER_SIZE = 80;
+    private static final int MIDSTATE_SIZE = 64; // previousHash and merkleRoot, they don't change while mining
+
+    // Each thread hashing headers keeps its own Sha256, see Sha256 for why we don't use MessageDigest here
+    private static final ThreadLocal<Sha256> HEADER_HASHER = ThreadLocal.withInitial(Sha256::new);
+
     private byte[] previousHashCode;
     private List<Transaction> transactions;
     private final long timestamp;
 
     // Validation Proof of Work
     private int nonce;
+    private int difficultyBits; // number of leading zero bits the hash must have
 
     private byte[] blockHashCode;
 
+    // Updated as transactions are added
+    private final MerkleTree merkleTree;
+    private int[] midstate; // cached, reset when a transaction is added
+
     public Block(byte[] previousHashCode) {
         this.previousHashCode = previousHashCode;
         this.transactions = new ArrayList<>();
+        this.merkleTree = new MerkleTree();
         this.timestamp = System.currentTimeMillis();
         this.nonce = 0;
     }
@@ -31,29 +46,111 @@ public class Block {
     public Block() {
         this.previousHashCode = new byte[32];
         this.transactions = new ArrayList<>();
+        this.merkleTree = new MerkleTree();
+        this.timestamp = System.currentTimeMillis();
+        this.nonce = 0;
+    }
+
+    // Used by BinaryCodec to rebuild a decoded block
+    Block(byte[] previousHashCode, long timestamp, int difficultyBits, int nonce) {
+        this.previousHashCode = previousHashCode;
+        this.transactions = new ArrayList<>();
+        this.merkleTree = new MerkleTree();
+        this.timestamp = timestamp;
+        setDifficultyBits(difficultyBits);
+        this.nonce = nonce;
+    }
+
+    // Used by BlockTemplateBuilder : a new block with the same transactions, their merkle tree is copied, not hashed again
+    Block(Block candidate) {
+        this.previousHashCode = candidate.previousHashCode;
+        this.transactions = new ArrayList<>(candidate.transactions);
+        this.merkleTree = candidate.merkleTree.copy();
         this.timestamp = System.currentTimeMillis();
         this.nonce = 0;
     }
 
     public void addTransaction(Transaction transaction) {
         transactions.add(transaction);
+        merkleTree.append(transaction.getTxId());
+        midstate = null;
     }
 
     /**
      * When Miner valid all the transaction
      * @return
-     * @throws NoSuchAlgorithmException
      */
-    public byte[] CalculateBlockHash() throws NoSuchAlgorithmException {
-        ByteBuffer buffer = ByteBuffer.allocate(4096*4);
-        buffer.put(previousHashCode);
-        buffer.putLong(timestamp);
-        for (Transaction transaction : transactions) {
-            buffer.put(transaction.getData());
+    public byte[] CalculateBlockHash() {
+        long start = System.nanoTime();
+        var hash = CalculateBlockHash(nonce);
+        Metrics.getInstance().getBlockHashing().record(System.nanoTime() - start);
+        return hash;
+    }
+
+    /**
+     * Same footprint as CalculateBlockHash() but with another nonce,
+     * used by the MiningEngine to try nonces without touching the block
+     */
+    public byte[] CalculateBlockHash(int nonce) {
+        var hash = new byte[Sha256.DIGEST_SIZE];
+        hashHeader(nonce, HEADER_HASHER.get(), hash);
+        return hash;
+    }
+
+    /**
+     * Hash the header with the given nonce into out without any allocation.
+     * Only the last 16 bytes of the header are compressed, the first 64 come from the cached midstate.
+     */
+    void hashHeader(int nonce, Sha256 hasher, byte[] out) {
+        hasher.reset(getMidstate(), MIDSTATE_SIZE)
+                .putLong(timestamp)
+                .putInt(difficultyBits)
+                .putInt(nonce)
+                .digest(out, 0);
+    }
+
+    private int[] getMidstate() {
+        var cached = midstate;
+        if (cached == null) {
+            cached = new Sha256().update(previousHashCode).update(getMerkleRoot()).midstate();
+            midstate = cached;
         }
-        //MessageDigest used for creating the footprint of the Block
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        return digest.digest(buffer.array());
+        return cached;
+    }
+
+    /**
+     * The serialized header, its SHA-256 is the hash of the block
+     */
+    public byte[] getHeaderBytes() {
+        return ByteBuffer.allocate(HEADER_SIZE)
+                .put(previousHashCode)
+                .put(getMerkleRoot())
+                .putLong(timestamp)
+                .putInt(difficultyBits)
+                .putInt(nonce)
+                .array();
+    }
+
+    /**
+     * Root of the merkle tree of the transaction hashes, see MerkleTree
+     */
+    public byte[] getMerkleRoot() {
+        return merkleTree.getRoot();
+    }
+
+    /**
+     * Proof that the transaction at this index is in the block, checked with MerkleTree.verify against getMerkleRoot()
+     */
+    public MerkleProof getMerkleProof(int transactionIndex) {
+        return merkleTree.getProof(transactionIndex);
+    }
+
+    /**
+     * Called by the MiningEngine once a nonce giving a valid hash has been found
+     */
+    protected void setProofOfWork(int nonce, byte[] blockHashCode) {
+        this.nonce = nonce;
+        this.blockHashCode = blockHashCode;
     }
 
     public byte[] getPreviousHashCode() {
@@ -61,6 +158,27 @@ public class Block {
     }
 
     public List<Transaction> getTransactions() {
-        return transactions;
+        return Collections.unmodifiableList(transactions);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getNonce() {
+        return nonce;
+    }
+
+    public int getDifficultyBits() {
+        return difficultyBits;
+    }
+
+    public void setDifficultyBits(int difficultyBits) {
+        if (difficultyBits < 0 || difficultyBits > 256) throw new IllegalArgumentException("Difficulty must be between 0 and 256 bits.");
+        this.difficultyBits = difficultyBits;
+    }
+
+    public byte[] getBlockHashCode() {
+        return blockHashCode;
     }
 }
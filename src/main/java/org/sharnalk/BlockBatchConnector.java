@@ -0,0 +1,244 @@
+package org.sharnalk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Connects blocks by batches, for the catch-up of a node far behind : connecting them one by one costs one UTXO set
+ * update and one fsync per block, the disk is then the limit.
+ *
+ * The UTXO changes of a batch are accumulated in memory, on top of the UTXO set which is only read : an output
+ * created and spent inside the batch never reaches the set (like in UndoRecord, only the net change is kept).
+ * At the end of the batch the net change is applied to the set with a single UTXOSet.spend, and the blocks are
+ * written to the BlockStore with BlockStore.appendAll, one fsync for the whole batch.
+ * A bad block stops the connection : the blocks of the batch before it are still committed.
+ *
+ * The signatures of a batch are checked in parallel before the UTXO changes, like in ChainValidator.
+ */
+public class BlockBatchConnector {
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final UTXOSet utxoSet;
+    private final BlockStore blockStore; // null to only update the UTXO set
+    private final int minimumDifficultyBits;
+    private final int batchSize;
+    private final ExecutorService pool;
+    private byte[] tipHash;
+
+    // The changes of the batch in progress
+    private final HashMap<OutPoint, UTXO> created = new HashMap<>();
+    private final LinkedHashMap<OutPoint, UTXO> spent = new LinkedHashMap<>(); // UTXOs of the set spent by the batch
+    // What the block in progress did to them, to take it back if the block is not valid
+    private final List<OutPoint> blockCreated = new ArrayList<>();
+    private final List<UTXO> blockCancelled = new ArrayList<>();
+    private final List<OutPoint> blockSpent = new ArrayList<>();
+
+    public BlockBatchConnector(UTXOSet utxoSet, BlockStore blockStore, int minimumDifficultyBits) throws IOException {
+        this(utxoSet, blockStore, minimumDifficultyBits, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param utxoSet The set the blocks are applied to, it must hold the UTXOs existing before the first block.
+     * @param blockStore Where the blocks are written, the first block connected must follow its last one.
+     * @param batchSize Number of blocks committed together.
+     */
+    public BlockBatchConnector(UTXOSet utxoSet, BlockStore blockStore, int minimumDifficultyBits, int batchSize) throws IOException {
+        if (batchSize <= 0) throw new IllegalArgumentException("Batch size must be positive.");
+        this.utxoSet = utxoSet;
+        this.blockStore = blockStore;
+        this.minimumDifficultyBits = minimumDifficultyBits;
+        this.batchSize = batchSize;
+        this.tipHash = (blockStore == null || blockStore.getHeight() == 0)
+                ? new byte[Sha256.DIGEST_SIZE]
+                : blockStore.getBlockHash(blockStore.getHeight() - 1);
+        this.pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            var thread = new Thread(runnable, "block-connector");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Connect the blocks in order, on top of the last connected one. The heights of the result are positions in the list.
+     *
+     * @throws IOException If the BlockStore can't write a batch, its UTXO changes are then undone.
+     */
+    public synchronized ChainValidationResult connect(List<Block> blocks) throws IOException {
+        long start = System.nanoTime();
+        for (int first = 0; first < blocks.size(); first += batchSize) {
+            var batch = blocks.subList(first, Math.min(blocks.size(), first + batchSize));
+            var batchTip = tipHash;
+            int good = 0;
+            String error = null;
+            try {
+                var signatures = checkSignatures(batch);
+                for (; good < batch.size(); good++) {
+                    error = add(batch.get(good), signatures.get(good));
+                    if (error != null) {
+                        rollbackBlock();
+                        break;
+                    }
+                    blockCreated.clear();
+                    blockCancelled.clear();
+                    blockSpent.clear();
+                }
+                commit(batch.subList(0, good));
+            } catch (IOException | RuntimeException e) {
+                tipHash = batchTip;
+                throw e;
+            } finally {
+                created.clear();
+                spent.clear();
+                blockCreated.clear();
+                blockCancelled.clear();
+                blockSpent.clear();
+            }
+            if (error != null) {
+                int height = first + good;
+                return new ChainValidationResult(height, height, error, System.nanoTime() - start);
+            }
+        }
+        return new ChainValidationResult(blocks.size(), -1, null, System.nanoTime() - start);
+    }
+
+    // Each signature is a task of its own, they don't depend on the UTXOs
+    private List<List<CompletableFuture<Boolean>>> checkSignatures(List<Block> batch) {
+        var miner = Miner.getInstance();
+        List<List<CompletableFuture<Boolean>>> signatures = new ArrayList<>(batch.size());
+        for (var block : batch) {
+            List<CompletableFuture<Boolean>> ofBlock = new ArrayList<>(block.getTransactions().size());
+            for (var tx : block.getTransactions()) {
+                ofBlock.add(CompletableFuture.supplyAsync(() -> miner.isSignatureValid(tx), pool));
+            }
+            signatures.add(ofBlock);
+        }
+        return signatures;
+    }
+
+    /**
+     * Add the changes of the block to the ones of the batch
+     *
+     * @return null if the block is valid, the reason otherwise.
+     */
+    private String add(Block block, List<CompletableFuture<Boolean>> signatures) {
+        var hash = block.CalculateBlockHash();
+        var error = ChainValidator.checkBlock(block, hash, minimumDifficultyBits);
+        if (error != null) return error;
+        if (!Arrays.equals(block.getPreviousHashCode(), tipHash)) return "Does not follow the previous block";
+
+        var transactions = block.getTransactions();
+        for (int i = 0; i < transactions.size(); i++) {
+            var tx = transactions.get(i);
+            if (!signatures.get(i).join()) return "Transaction " + i + " has an invalid signature";
+            if (tx.getInputs().isEmpty()) return "Transaction " + i + " has no input";
+            long inputTotal = 0;
+            long outputTotal;
+            try {
+                for (var input : tx.getInputs()) {
+                    var amount = spend(input, tx.getSenderKeyHash());
+                    if (amount < 0) return "Transaction " + i + " spends a missing UTXO or one of another owner";
+                    inputTotal = Amount.add(inputTotal, amount);
+                }
+                outputTotal = tx.getOutputTotal();
+            } catch (ArithmeticException e) {
+                return "Transaction " + i + " amounts overflow";
+            }
+            if (outputTotal > inputTotal) return "Transaction " + i + " spends more than its inputs";
+            for (var output : tx.getOutputs()) {
+                var outPoint = output.getOutPoint();
+                // An outpoint already unspent would be lost, same as UTXOSet.spend the transaction is refused
+                if (created.containsKey(outPoint) || (!spent.containsKey(outPoint) && utxoSet.get(outPoint) != null)) {
+                    return "Transaction " + i + " creates an output which already exists";
+                }
+                created.put(outPoint, output);
+                blockCreated.add(outPoint);
+            }
+        }
+        tipHash = hash;
+        return null;
+    }
+
+    /**
+     * Spend the UTXO : created by the batch it just disappears, otherwise it comes from the set.
+     * The input has to say the amount and the owner of the UTXO spent, and the owner has to be the sender.
+     *
+     * @return The amount of the UTXO, -1 if it is not unspent or can't be spent by this sender.
+     */
+    private long spend(UTXO input, byte[] sender) {
+        if (input.getTxId() == null) return -1;
+        var outPoint = input.getOutPoint();
+        var fromBatch = created.remove(outPoint);
+        if (fromBatch != null) {
+            blockCancelled.add(fromBatch);
+            return canSpend(fromBatch, input, sender) ? fromBatch.getAmount() : -1;
+        }
+        if (spent.containsKey(outPoint)) return -1;
+        var stored = utxoSet.get(outPoint);
+        if (stored == null || !canSpend(stored, input, sender)) return -1;
+        spent.put(outPoint, stored);
+        blockSpent.add(outPoint);
+        return stored.getAmount();
+    }
+
+    private static boolean canSpend(UTXO utxo, UTXO input, byte[] sender) {
+        return UTXOSet.sameOutput(utxo, input) && Arrays.equals(utxo.getKeyHash(), sender);
+    }
+
+    // Take back the changes of the block which is not valid, the ones of the blocks before it stay
+    private void rollbackBlock() {
+        for (var outPoint : blockCreated) {
+            created.remove(outPoint);
+        }
+        for (var utxo : blockCancelled) {
+            created.put(utxo.getOutPoint(), utxo);
+        }
+        for (var outPoint : blockSpent) {
+            spent.remove(outPoint);
+        }
+    }
+
+    /**
+     * Apply the net change of the blocks to the UTXO set, then write them with a single fsync
+     */
+    private void commit(List<Block> blocks) throws IOException {
+        if (blocks.isEmpty()) return;
+        var inputs = new ArrayList<>(spent.values());
+        var outputs = new ArrayList<>(created.values());
+        // spend() needs an input : a batch of empty blocks only writes them
+        if (!inputs.isEmpty() && utxoSet.spend(inputs, outputs) == null) {
+            throw new IllegalStateException("The UTXO set has been changed while the batch was connected.");
+        }
+        if (blockStore != null) {
+            try {
+                // All or nothing : when it fails no block of the batch stays in the store, the set goes back with it
+                blockStore.appendAll(blocks);
+            } catch (IOException | RuntimeException e) {
+                if (!inputs.isEmpty()) utxoSet.unspend(inputs, outputs);
+                throw e;
+            }
+        }
+        long transactions = 0;
+        for (var block : blocks) {
+            transactions += block.getTransactions().size();
+        }
+        Metrics.getInstance().getTransactionsConnected().add(transactions);
+    }
+
+    /**
+     * Hash of the last connected block, all zeros before the first block
+     */
+    public synchronized byte[] getTipHash() {
+        return tipHash.clone();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -1,14 +1,21 @@
 package org.sharnalk;
 
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Scanner;
 
 public class BlockChainExample {
+    // Number of leading zero bits a block hash must have, kept low so mining takes less than a second
+    private static final int MINING_DIFFICULTY = 16;
+    private static final MiningEngine miningEngine = new MiningEngine();
+    private static final int MAX_TRANSACTIONS_PER_BLOCK = 1000;
+    private static final Mempool mempool = new Mempool();
+
     public static void main(String[] args) throws Exception {
         var walletFactory = WalletFactory.getInstance();
         var validator = Miner.getInstance();
+        KeyPool.forScheme(SignatureScheme.DEFAULT); // starts generating keys while the menu is shown
         List<Block> blockList = new ArrayList<>();
         Scanner scanner = new Scanner(System.in);
 
@@ -35,7 +42,8 @@ public class BlockChainExample {
                     + "[2] See all wallet\n"
                     + "[3] See blockchain\n"
                     + "[4] Create transaction\n"
-                    + "[5] See funds from wallet\n");
+                    + "[5] See funds from wallet\n"
+                    + "[6] Mine a block (" + mempool.size() + " pending transactions)\n");
         }
     }
 
@@ -43,49 +51,111 @@ public class BlockChainExample {
                                             List<Block> blockList, Scanner scanner) throws Exception {
         switch (choice) {
             case "1":
-                createWallet(walletFactory, scanner);
+                createWallet(scanner);
                 break;
             case "2":
-                walletFactory.getAllWalletsConsole();
+                printWallets(walletFactory);
                 break;
             case "3":
                 showBlockchain(blockList);
                 break;
             case "4":
-                createTransaction(walletFactory, validator, blockList, scanner);
+                createTransaction(walletFactory, scanner);
+                break;
+            case "5":
+                showFunds(walletFactory, scanner);
+                break;
+            case "6":
+                mineBlock(walletFactory, validator, blockList);
                 break;
             default:
                 System.out.println("Invalid choice.");
         }
     }
 
-    private static void createWallet(WalletFactory walletFactory, Scanner scanner) throws Exception {
+    private static void createWallet(Scanner scanner) throws Exception {
         System.out.println("Choose an amount: ");
         String amount = scanner.nextLine();
-        var wallet = new Wallet(Integer.parseInt(amount));
-        walletFactory.addWallet(wallet);
+        System.out.println("Choose a signature scheme: [1] RSA [2] ECDSA [3] Ed25519 (empty for RSA)");
+        String scheme = scanner.nextLine();
+        var signatureScheme = SignatureScheme.RSA;
+        switch (scheme) {
+            case "2":
+                signatureScheme = SignatureScheme.ECDSA;
+                break;
+            case "3":
+                signatureScheme = SignatureScheme.ED25519;
+                break;
+            default:
+                break;
+        }
+        // Registered in the WalletFactory by its constructor
+        var wallet = new Wallet(Amount.parse(amount), signatureScheme);
+        System.out.println("This is your address : " + wallet.getAddress());
     }
-    private static void createTransaction(WalletFactory walletFactory, Miner validator, List<Block> blockList,
-                                          Scanner scanner) throws Exception {
+    private static void createTransaction(WalletFactory walletFactory, Scanner scanner) throws Exception {
         System.out.println("Choose a sender wallet: ");
-        walletFactory.getAllWalletsConsole();
-        String pbkSender = scanner.nextLine();
+        printWallets(walletFactory);
+        String senderAddress = scanner.nextLine();
         System.out.println("Select a recipient wallet: ");
-        String pbkRecipient = scanner.nextLine();
+        String recipientAddress = scanner.nextLine();
         System.out.println("Select an amount: ");
         String amountTx = scanner.nextLine();
+        System.out.println("Select a fee (empty for none): ");
+        String feeTx = scanner.nextLine();
 
-        var tx = walletFactory.getWallet(walletFactory.getPbkFromConsole(pbkSender))
-                .createTransactions(walletFactory.getPbkFromConsole(pbkRecipient), Double.parseDouble(amountTx));
+        var sender = walletFactory.getWallet(Address.fromString(senderAddress));
+        var recipient = walletFactory.getWallet(Address.fromString(recipientAddress));
+        if (sender == null || recipient == null) {
+            System.out.println("Unknown wallet.");
+            return;
+        }
+        var tx = sender.createTransactions(recipient.getPublicKey(), Amount.parse(amountTx),
+                        feeTx.isBlank() ? 0 : Amount.parse(feeTx));
 
-        if (validator.verifyTransaction(tx)) {
-            Block block = (blockList.isEmpty()) ? new Block() :
-                    new Block(blockList.get(blockList.size() - 1).CalculateBlockHash());
-            blockList.add(block);
-            block.addTransaction(tx);
-            tx.getOutputs().forEach(walletFactory::addUTXOToWallet);
+        // The transaction waits in the mempool until the next block is mined
+        if (mempool.add(tx)) {
+            System.out.println("Transaction added to the mempool.");
         } else {
-            System.out.println("Transaction not validated by validators.");
+            System.out.println("Transaction refused by the mempool.");
+        }
+    }
+
+    private static void printWallets(WalletFactory walletFactory) {
+        for (var wallet : walletFactory.getWallets()) {
+            System.out.println("Wallet : " + wallet.getAddress() + "\n" + wallet.getAllUnspentOutputsConsole() + "\n");
+        }
+    }
+
+    private static void showFunds(WalletFactory walletFactory, Scanner scanner) {
+        System.out.println("Choose a wallet: ");
+        printWallets(walletFactory);
+        var address = Address.fromString(scanner.nextLine());
+        var wallet = walletFactory.getWallet(address);
+        if (wallet == null) {
+            System.out.println("Unknown wallet.");
+            return;
+        }
+        System.out.println("Balance : " + Amount.format(walletFactory.getBalance(address)) + " BTC");
+        System.out.println(wallet.getAllUnspentOutputsConsole());
+    }
+
+    private static void mineBlock(WalletFactory walletFactory, Miner validator, List<Block> blockList) throws Exception {
+        var previousHashCode = blockList.isEmpty() ? null : blockList.get(blockList.size() - 1).getBlockHashCode();
+        var block = validator.assembleBlock(mempool, previousHashCode, MAX_TRANSACTIONS_PER_BLOCK);
+        if (block.getTransactions().isEmpty()) {
+            System.out.println("No valid transaction to put in a block.");
+            return;
+        }
+        var result = miningEngine.mine(block, MINING_DIFFICULTY);
+        System.out.printf("Block mined with %d transactions, nonce %d (%.0f hashes/s)%n",
+                block.getTransactions().size(), result.getNonce(), result.getHashesPerSecond());
+        blockList.add(block);
+        walletFactory.connectBlock(block);
+        for (var tx : block.getTransactions()) {
+            for (var output : tx.getOutputs()) {
+                System.out.println(Amount.format(output.getAmount()) + " BTC added to wallet : " + new Address(output.getKeyHash()));
+            }
         }
     }
 
@@ -93,13 +163,8 @@ public class BlockChainExample {
         if (blockList.isEmpty()) {
             System.out.println("Blockchain is empty.");
         } else {
-            blockList.forEach(block -> {
-                try {
-                    System.out.println("Block: " + block.CalculateBlockHash());
-                } catch (NoSuchAlgorithmException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+            var hex = HexFormat.of();
+            blockList.forEach(block -> System.out.println("Block: " + hex.formatHex(block.CalculateBlockHash())));
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package org.sharnalk;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event of a block applied to the UTXO set and added on top of the chain
+ */
+@Name("org.sharnalk.BlockConnected")
+@Label("Block Connected")
+@Category("Sharnalk")
+@Description("Block applied to the UTXO set")
+class BlockConnectedEvent extends Event {
+    @Label("Height")
+    int height;
+
+    @Label("Transactions")
+    int transactions;
+
+    @Label("Connected")
+    boolean connected;
+
+    /**
+     * Record the connection in the Metrics, and commit the event if JFR records it.
+     *
+     * @param start System.nanoTime() when the connection started.
+     */
+    static void record(BlockConnectedEvent event, long start, int height, Block block, boolean connected) {
+        var metrics = Metrics.getInstance();
+        metrics.getBlockConnect().record(System.nanoTime() - start);
+        if (connected) metrics.getTransactionsConnected().add(block.getTransactions().size());
+        if (event.shouldCommit()) {
+            event.height = height;
+            event.transactions = block.getTransactions().size();
+            event.connected = connected;
+            event.commit();
+        }
+    }
+}
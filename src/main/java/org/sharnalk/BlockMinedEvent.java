@@ -0,0 +1,28 @@
+package org.sharnalk;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event of a nonce search by the MiningEngine, its duration is the mining time
+ */
+@Name("org.sharnalk.BlockMined")
+@Label("Block Mined")
+@Category("Sharnalk")
+@Description("Proof of work search of a block")
+class BlockMinedEvent extends Event {
+    @Label("Difficulty Bits")
+    int difficultyBits;
+
+    @Label("Transactions")
+    int transactions;
+
+    @Label("Hashes")
+    long hashes;
+
+    @Label("Found")
+    boolean found;
+}
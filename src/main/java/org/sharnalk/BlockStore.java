@@ -0,0 +1,311 @@
+package org.sharnalk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent storage of the blocks, in append only segment files (blk00000.dat, blk00001.dat...).
+ * Each block is written as one record :
+ *  magic (4) | payload length (4) | CRC32 of payload (4) | block hash (32) | payload (BinaryCodec encoding)
+ * The blocks are read back through memory mapped regions of the segments, so reading does not copy the file
+ * through a stream. An in-memory index gives the position of each block from its hash or its height, the position
+ * is packed in a single long (segment number in the high bits, offset in the low bits).
+ *
+ * At opening the index is rebuilt by reading only the record headers. A crash in the middle of a write can only
+ * damage the end of the last segment : a segment is forced to the disk before the next one is started. Its records
+ * are also checked against their CRC and the file is cut after the last good one. The segment before it is checked
+ * the same way, in case it was left torn by an older version : when it is damaged, it is cut and the last segment,
+ * whose blocks would follow missing ones, is dropped.
+ */
+public class BlockStore implements Closeable {
+    public static final long DEFAULT_SEGMENT_SIZE = 128L * 1024 * 1024;
+    private static final int MAGIC = 0xB10C5707;
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 4 + Sha256.DIGEST_SIZE;
+    // Offsets take the low bits of a position. A segment is read through a single MappedByteBuffer and int offsets,
+    // so a segment is at most Integer.MAX_VALUE bytes (2 GB) : 31 bits would be enough, 40 leave the room
+    private static final int OFFSET_BITS = 40;
+
+    private final Path directory;
+    private final long maxSegmentSize;
+    private final List<FileChannel> segments = new ArrayList<>();
+    private final List<MappedByteBuffer> mappings = new ArrayList<>(); // grows with the segment, see map()
+    private final HashMap<HashKey, Long> positionsByHash = new HashMap<>();
+    private long[] positionsByHeight = new long[1024];
+    private int height; // number of blocks stored
+
+    public BlockStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param maxSegmentSize Size from which a new segment file is started, at most Integer.MAX_VALUE bytes.
+     */
+    public BlockStore(Path directory, long maxSegmentSize) throws IOException {
+        if (maxSegmentSize <= 0 || maxSegmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size must be between 1 and " + Integer.MAX_VALUE + " bytes.");
+        }
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        Files.createDirectories(directory);
+        for (int i = 0; Files.exists(segmentPath(i)); i++) {
+            openSegment(i);
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            // Only the end of the chain can be torn, the older segments were forced before the next one started
+            boolean check = i >= segments.size() - 2;
+            if (!scanSegment(i, check)) {
+                if (!check) throw new IOException("Segment " + segmentPath(i) + " is damaged.");
+                dropSegmentsAfter(i);
+            }
+        }
+        if (segments.isEmpty()) openSegment(0);
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("blk%05d.dat", segment));
+    }
+
+    private void openSegment(int segment) throws IOException {
+        segments.add(FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        mappings.add(null);
+    }
+
+    /**
+     * Rebuild the index from the record headers of a segment.
+     * With check the payloads are checked too and an incomplete or damaged tail is cut.
+     *
+     * @return false if the segment was damaged.
+     */
+    private boolean scanSegment(int segment, boolean check) throws IOException {
+        var channel = segments.get(segment);
+        long fileSize = channel.size();
+        var header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long offset = 0;
+        while (offset + RECORD_HEADER_SIZE <= fileSize) {
+            header.clear();
+            channel.read(header, offset);
+            header.flip();
+            int magic = header.getInt();
+            int length = header.getInt();
+            int crc = header.getInt();
+            var hash = new byte[Sha256.DIGEST_SIZE];
+            header.get(hash);
+            long end = offset + RECORD_HEADER_SIZE + length;
+            if (magic != MAGIC || length < 0 || end > fileSize) break;
+            if (check && !checkCrc(channel, offset + RECORD_HEADER_SIZE, length, crc)) break;
+            index(hash, position(segment, offset));
+            offset = end;
+        }
+        if (offset == fileSize) return true;
+        if (check) {
+            channel.truncate(offset);
+            channel.force(true);
+        }
+        return false;
+    }
+
+    // Close and delete the segments after this one
+    private void dropSegmentsAfter(int segment) throws IOException {
+        while (segments.size() - 1 > segment) {
+            int last = segments.size() - 1;
+            segments.remove(last).close();
+            mappings.remove(last);
+            Files.deleteIfExists(segmentPath(last));
+        }
+    }
+
+    private static boolean checkCrc(FileChannel channel, long offset, int length, int expected) throws IOException {
+        var payload = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        var crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue() == expected;
+    }
+
+    private static long position(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    private void index(byte[] hash, long position) {
+        if (height == positionsByHeight.length) positionsByHeight = Arrays.copyOf(positionsByHeight, height * 2);
+        positionsByHeight[height++] = position;
+        positionsByHash.put(new HashKey(hash), position);
+    }
+
+    /**
+     * Write a mined block at the end of the store and flush it to the disk.
+     * The blocks must be appended in the order of the chain, the first one has height 0.
+     *
+     * @return The height of the block.
+     */
+    public synchronized int append(Block block) throws IOException {
+        return appendAll(List.of(block));
+    }
+
+    /**
+     * Write several blocks at the end of the store with a single flush to the disk, in place of one per block.
+     * Used by BlockBatchConnector to commit a whole batch at once.
+     * All or nothing : if one write or the flush fails, the blocks already written are cut from the files and
+     * from the index, the store is as before the call.
+     *
+     * @return The height of the first block.
+     */
+    public synchronized int appendAll(List<Block> blocks) throws IOException {
+        int firstHeight = height;
+        int firstSegment = segments.size() - 1;
+        long firstSegmentSize = segments.get(firstSegment).size();
+        try {
+            for (var block : blocks) {
+                write(block);
+            }
+            // Usually one segment, two if the batch crossed the end of one
+            for (int segment = firstSegment; segment < segments.size(); segment++) {
+                segments.get(segment).force(false);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                rollback(blocks, firstHeight, firstSegment, firstSegmentSize);
+            } catch (IOException rollbackError) {
+                e.addSuppressed(rollbackError);
+            }
+            throw e;
+        }
+        return firstHeight;
+    }
+
+    // Take back a failed appendAll : forget the blocks from firstHeight on and cut the files where they were
+    private void rollback(List<Block> blocks, int firstHeight, int firstSegment, long firstSegmentSize) throws IOException {
+        for (int i = 0; i < height - firstHeight; i++) {
+            positionsByHash.remove(new HashKey(blocks.get(i).getBlockHashCode()));
+        }
+        height = firstHeight;
+        dropSegmentsAfter(firstSegment);
+        mappings.set(firstSegment, null); // it may cover the part cut
+        var channel = segments.get(firstSegment);
+        channel.truncate(firstSegmentSize);
+        channel.force(true);
+    }
+
+    private int write(Block block) throws IOException {
+        var hash = block.getBlockHashCode();
+        if (hash == null) throw new IllegalArgumentException("Only a mined block can be stored.");
+        if (positionsByHash.containsKey(new HashKey(hash))) throw new IllegalArgumentException("Block already stored.");
+
+        int payloadSize = BinaryCodec.encodedSize(block);
+        var record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadSize);
+        record.position(RECORD_HEADER_SIZE);
+        BinaryCodec.encode(block, record);
+        var crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, payloadSize);
+        record.putInt(0, MAGIC)
+                .putInt(4, payloadSize)
+                .putInt(8, (int) crc.getValue())
+                .put(12, hash);
+        record.flip();
+
+        int segment = segments.size() - 1;
+        var channel = segments.get(segment);
+        if (channel.size() > 0 && channel.size() + record.remaining() > maxSegmentSize) {
+            // On the disk before anything goes in the next one, so only the last segment can be torn by a crash
+            channel.force(false);
+            openSegment(++segment);
+            channel = segments.get(segment);
+        }
+        long offset = channel.size();
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        index(hash, position(segment, offset));
+        return height - 1;
+    }
+
+    /**
+     * Hash of the block at this height, read from its record header
+     */
+    public synchronized byte[] getBlockHash(int blockHeight) throws IOException {
+        if (blockHeight < 0 || blockHeight >= height) throw new IndexOutOfBoundsException("No block at height " + blockHeight);
+        long position = positionsByHeight[blockHeight];
+        int segment = (int) (position >>> OFFSET_BITS);
+        int offset = (int) (position & ((1L << OFFSET_BITS) - 1));
+        var hash = new byte[Sha256.DIGEST_SIZE];
+        map(segment, offset + RECORD_HEADER_SIZE).get(offset + 12, hash);
+        return hash;
+    }
+
+    public synchronized boolean contains(byte[] blockHash) {
+        return positionsByHash.containsKey(new HashKey(blockHash));
+    }
+
+    /**
+     * @return The block with this hash, or null if it is not in the store.
+     */
+    public Block getBlock(byte[] blockHash) throws IOException {
+        var payload = readPayload(blockHash);
+        return payload == null ? null : BinaryCodec.decodeBlock(payload);
+    }
+
+    public Block getBlock(int blockHeight) throws IOException {
+        return BinaryCodec.decodeBlock(readPayload(blockHeight));
+    }
+
+    /**
+     * The encoded block, as a read only view on the mapped file
+     */
+    public synchronized ByteBuffer readPayload(byte[] blockHash) throws IOException {
+        var position = positionsByHash.get(new HashKey(blockHash));
+        return position == null ? null : read(position);
+    }
+
+    public synchronized ByteBuffer readPayload(int blockHeight) throws IOException {
+        if (blockHeight < 0 || blockHeight >= height) throw new IndexOutOfBoundsException("No block at height " + blockHeight);
+        return read(positionsByHeight[blockHeight]);
+    }
+
+    private ByteBuffer read(long position) throws IOException {
+        int segment = (int) (position >>> OFFSET_BITS);
+        int offset = (int) (position & ((1L << OFFSET_BITS) - 1));
+        var mapping = map(segment, offset + RECORD_HEADER_SIZE);
+        int length = mapping.getInt(offset + 4);
+        if (offset + RECORD_HEADER_SIZE + length > mapping.limit()) mapping = map(segment, offset + RECORD_HEADER_SIZE + length);
+        return mapping.slice(offset + RECORD_HEADER_SIZE, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Mapping of the segment covering at least the first minSize bytes.
+     * The last segment keeps growing, so its mapping is redone when a newer block is read.
+     */
+    private MappedByteBuffer map(int segment, long minSize) throws IOException {
+        var mapping = mappings.get(segment);
+        if (mapping == null || mapping.limit() < minSize) {
+            var channel = segments.get(segment);
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mappings.set(segment, mapping);
+        }
+        return mapping;
+    }
+
+    /**
+     * Number of blocks in the store, the next block will have this height
+     */
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (var channel : segments) {
+            channel.close();
+        }
+    }
+}
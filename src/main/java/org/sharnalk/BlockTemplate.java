@@ -0,0 +1,41 @@
+package org.sharnalk;
+
+/**
+ * A candidate block given by the BlockTemplateBuilder : the block to mine (not mined yet, its merkle root
+ * is already computed) with the fees it collects and the size of its transactions.
+ */
+public class BlockTemplate {
+    private final Block block;
+    private final long totalFees;
+    private final long totalBytes;
+
+    public BlockTemplate(Block block, long totalFees, long totalBytes) {
+        this.block = block;
+        this.totalFees = totalFees;
+        this.totalBytes = totalBytes;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    public long getTotalFees() {
+        return totalFees;
+    }
+
+    /**
+     * Size of the data of the transactions, it is what the size limit of the builder applies to
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public int getTransactionCount() {
+        return block.getTransactions().size();
+    }
+
+    @Override
+    public String toString() {
+        return getTransactionCount() + " transactions, " + totalBytes + " bytes, fees " + Amount.format(totalFees);
+    }
+}
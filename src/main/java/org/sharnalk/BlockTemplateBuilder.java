@@ -0,0 +1,309 @@
+package org.sharnalk;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps a candidate block ready to mine : the best transactions of the Mempool by fee rate, up to a size limit
+ * and a number of transactions, on top of the current tip. Node mines from it. It listens to the Mempool and to the chain (BlockTree) and updates the candidate
+ * as they change, instead of selecting and verifying the whole pool again for each block :
+ *  - a new transaction is appended to the candidate if there is room (the merkle tree is updated incrementally),
+ *    or replaces worse ones if it pays more,
+ *  - a transaction leaving the pool leaves the candidate and the next best waiting one takes its place,
+ *  - a new tip removes the transactions of the block and the ones spending the same UTXOs, and the registered
+ *    MiningEngines are aborted so the miners switch to the new candidate at once.
+ *
+ * Only transactions whose inputs are all in the UTXO set are selected, a transaction spending the output of another
+ * pooled transaction waits for its parent to be in a block. So the candidate never depends on its own order.
+ * getTemplate() gives a copy of the candidate (the merkle tree nodes are copied, not hashed again), so the candidate
+ * keeps being updated in place while the given block is mined. Only a removal or a new tip builds it again.
+ */
+public class BlockTemplateBuilder implements MempoolListener, ChainListener {
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private static final class Entry {
+        final Transaction transaction;
+        final HashKey txId;
+        final int size;
+        final long fee;
+        final double feeRate;
+        final long sequence; // arrival order, for the same fee rate the oldest goes first
+        boolean selected;
+
+        Entry(Transaction transaction, long sequence) {
+            this.transaction = transaction;
+            this.txId = new HashKey(transaction.getTxId());
+            this.size = transaction.getData().length;
+            this.fee = transaction.getFee();
+            this.feeRate = (double) fee / size;
+            this.sequence = sequence;
+        }
+    }
+
+    // Best first : highest fee rate, then oldest. Same order as the Mempool
+    private static final Comparator<Entry> PRIORITY = Comparator
+            .comparingDouble((Entry e) -> e.feeRate).reversed()
+            .thenComparingLong(e -> e.sequence);
+
+    private final Mempool mempool;
+    private final UTXOSet utxoSet;
+    private final long maxBytes;
+    private final int maxTransactions;
+    private final HashMap<HashKey, Entry> entries = new HashMap<>();
+    private final HashMap<OutPoint, Entry> spentOutPoints = new HashMap<>();
+    private final TreeSet<Entry> selected = new TreeSet<>(PRIORITY);
+    private final TreeSet<Entry> waiting = new TreeSet<>(PRIORITY); // inputs confirmed but no room for them
+    private final HashSet<Entry> orphans = new HashSet<>(); // spend outputs not in a block yet
+    private final List<MiningEngine> miningEngines = new CopyOnWriteArrayList<>();
+    private byte[] previousHashCode;
+    private long selectedBytes;
+    private long selectedFees;
+    private long sequence;
+    private Block candidate; // updated in place, null when it has to be built again
+    private BlockTemplate template; // given by getTemplate(), a copy of the candidate, null once the candidate changed
+
+    public BlockTemplateBuilder(Mempool mempool) {
+        this(mempool, Miner.getInstance().getGlobalUnspentOutputs(), null, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param utxoSet The UTXOs of the active chain, the inputs of the selected transactions are in it.
+     * @param tipHash Hash of the block to build on, null for the first block.
+     * @param maxBytes Maximum size of the data of the selected transactions.
+     */
+    public BlockTemplateBuilder(Mempool mempool, UTXOSet utxoSet, byte[] tipHash, long maxBytes) {
+        this(mempool, utxoSet, tipHash, maxBytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxTransactions Maximum number of selected transactions.
+     */
+    public BlockTemplateBuilder(Mempool mempool, UTXOSet utxoSet, byte[] tipHash, long maxBytes, int maxTransactions) {
+        if (maxBytes <= 0 || maxTransactions <= 0) throw new IllegalArgumentException("Block limits must be positive.");
+        this.mempool = mempool;
+        this.utxoSet = utxoSet;
+        this.previousHashCode = tipHash;
+        this.maxBytes = maxBytes;
+        this.maxTransactions = maxTransactions;
+        // Listening first : a transaction added meanwhile is seen twice, not missed
+        mempool.addListener(this);
+        for (var tx : mempool.getTransactions()) {
+            transactionAdded(tx);
+        }
+    }
+
+    /**
+     * The MiningEngine is aborted each time the tip changes, its block is then stale
+     */
+    public void addMiningEngine(MiningEngine miningEngine) {
+        miningEngines.add(miningEngine);
+    }
+
+    /**
+     * The current candidate. The same template is returned as long as nothing changes.
+     */
+    public synchronized BlockTemplate getTemplate() {
+        if (template != null) return template;
+        if (candidate == null) {
+            candidate = (previousHashCode == null) ? new Block() : new Block(previousHashCode);
+            for (var entry : selected) {
+                candidate.addTransaction(entry.transaction);
+            }
+        }
+        // The miner gets its own block, the candidate goes on changing
+        template = new BlockTemplate(new Block(candidate), selectedFees, selectedBytes);
+        return template;
+    }
+
+    @Override
+    public synchronized void transactionAdded(Transaction tx) {
+        var txId = tx.getTxId();
+        // The notifications come after the pool lock is released, this one may already be gone
+        if (entries.containsKey(new HashKey(txId)) || !mempool.contains(txId)) return;
+        var entry = new Entry(tx, sequence++);
+        entries.put(entry.txId, entry);
+        for (var input : tx.getInputs()) {
+            spentOutPoints.put(input.getOutPoint(), entry);
+        }
+        if (inputsConfirmed(tx)) {
+            offer(entry);
+        } else {
+            orphans.add(entry);
+        }
+    }
+
+    @Override
+    public synchronized void transactionRemoved(Transaction tx) {
+        var entry = entries.get(new HashKey(tx.getTxId()));
+        if (entry == null) return;
+        boolean wasSelected = entry.selected;
+        drop(entry);
+        if (wasSelected) fill();
+    }
+
+    @Override
+    public void blockConnected(Block block, int height) {
+        synchronized (this) {
+            previousHashCode = block.getBlockHashCode();
+            for (var tx : block.getTransactions()) {
+                var included = entries.get(new HashKey(tx.getTxId()));
+                if (included != null) drop(included);
+                // Another transaction spending the same UTXO can't be valid anymore
+                for (var input : tx.getInputs()) {
+                    var conflict = spentOutPoints.get(input.getOutPoint());
+                    if (conflict != null) drop(conflict);
+                }
+            }
+            for (var orphan : new ArrayList<>(orphans)) {
+                if (!inputsConfirmed(orphan.transaction)) continue;
+                orphans.remove(orphan);
+                offer(orphan);
+            }
+            fill();
+            invalidate();
+        }
+        abortMining();
+    }
+
+    @Override
+    public void blockDisconnected(Block block, int height) {
+        synchronized (this) {
+            previousHashCode = block.getPreviousHashCode();
+            // The outputs of the block are not in the UTXO set anymore, the transactions spending them wait again
+            var disconnected = new HashSet<HashKey>();
+            for (var tx : block.getTransactions()) {
+                disconnected.add(new HashKey(tx.getTxId()));
+            }
+            for (var entry : entries.values()) {
+                if (orphans.contains(entry) || !spendsAny(entry.transaction, disconnected)) continue;
+                if (entry.selected) {
+                    unselect(entry);
+                } else {
+                    waiting.remove(entry);
+                }
+                orphans.add(entry);
+            }
+            fill();
+            invalidate();
+        }
+        abortMining();
+    }
+
+    private void abortMining() {
+        for (var miningEngine : miningEngines) {
+            miningEngine.abort();
+        }
+    }
+
+    private static boolean spendsAny(Transaction tx, HashSet<HashKey> txIds) {
+        for (var input : tx.getInputs()) {
+            if (txIds.contains(new HashKey(input.getTxId()))) return true;
+        }
+        return false;
+    }
+
+    private boolean inputsConfirmed(Transaction tx) {
+        for (var input : tx.getInputs()) {
+            if (utxoSet.get(input.getOutPoint()) == null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Select the entry if there is room, or if the worst selected ones pay less and leaving frees enough room.
+     * Otherwise it waits.
+     */
+    private void offer(Entry entry) {
+        if (fits(entry, 0, 0)) {
+            select(entry);
+            return;
+        }
+        List<Entry> worse = new ArrayList<>();
+        long freed = 0;
+        var worstFirst = selected.descendingIterator();
+        while (!fits(entry, worse.size(), freed) && worstFirst.hasNext()) {
+            var worst = worstFirst.next();
+            if (PRIORITY.compare(worst, entry) < 0) break;
+            worse.add(worst);
+            freed += worst.size;
+        }
+        if (!fits(entry, worse.size(), freed)) {
+            waiting.add(entry);
+            return;
+        }
+        for (var worst : worse) {
+            unselect(worst);
+            waiting.add(worst);
+        }
+        select(entry);
+    }
+
+    /**
+     * Select the best waiting entries while they fit
+     */
+    private void fill() {
+        while (!waiting.isEmpty() && fits(waiting.first(), 0, 0)) {
+            select(waiting.pollFirst());
+        }
+    }
+
+    // Room for the entry once the given number of selected entries, of freedBytes in all, are unselected
+    private boolean fits(Entry entry, int freedCount, long freedBytes) {
+        return selected.size() - freedCount < maxTransactions && selectedBytes - freedBytes + entry.size <= maxBytes;
+    }
+
+    private void select(Entry entry) {
+        selected.add(entry);
+        entry.selected = true;
+        selectedBytes += entry.size;
+        selectedFees += entry.fee;
+        // Appended to the candidate, the merkle tree only hashes the new path
+        if (candidate != null) candidate.addTransaction(entry.transaction);
+        template = null;
+    }
+
+    private void unselect(Entry entry) {
+        selected.remove(entry);
+        entry.selected = false;
+        selectedBytes -= entry.size;
+        selectedFees -= entry.fee;
+        invalidate();
+    }
+
+    /**
+     * Forget the entry, wherever it is
+     */
+    private void drop(Entry entry) {
+        entries.remove(entry.txId);
+        for (var input : entry.transaction.getInputs()) {
+            spentOutPoints.remove(input.getOutPoint(), entry);
+        }
+        if (entry.selected) {
+            unselect(entry);
+        } else if (!waiting.remove(entry)) {
+            orphans.remove(entry);
+        }
+    }
+
+    // The candidate is built again at the next getTemplate()
+    private void invalidate() {
+        candidate = null;
+        template = null;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Transactions known by the builder : selected, waiting for room or waiting for their parent
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
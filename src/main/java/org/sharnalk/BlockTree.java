@@ -0,0 +1,258 @@
+package org.sharnalk;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * All the known blocks, indexed by hash, with the fork choice : the active chain is the one with the most work.
+ * The work of a block is 2^difficultyBits (the expected number of hashes to mine it), the work of a chain the sum.
+ *
+ * Each connected block keeps an UndoRecord, so switching to a heavier fork only disconnects the blocks above the
+ * fork point and connects the ones of the new branch : the cost depends on the depth of the reorganization,
+ * not on the length of the chain. If a block of the new branch is not valid, the old chain is put back.
+ */
+public class BlockTree {
+    private static final class Node {
+        final Block block;
+        final HashKey hash;
+        final Node parent;
+        final int height;
+        final BigInteger chainWork;
+        UndoRecord undo; // set while the block is in the active chain
+        boolean invalid;
+
+        Node(Block block, HashKey hash, Node parent) {
+            this.block = block;
+            this.hash = hash;
+            this.parent = parent;
+            this.height = (parent == null) ? 0 : parent.height + 1;
+            var work = BigInteger.ONE.shiftLeft(block.getDifficultyBits());
+            this.chainWork = (parent == null) ? work : parent.chainWork.add(work);
+        }
+    }
+
+    private final UTXOSet utxoSet;
+    private final int minimumDifficultyBits;
+    private final HashMap<HashKey, Node> nodes = new HashMap<>();
+    private final List<Node> activeChain = new ArrayList<>(); // index = height
+    private final List<ChainListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param utxoSet The set the active chain is applied to, it must hold the UTXOs existing before the first block.
+     * @param minimumDifficultyBits The proof of work every block must have at least.
+     */
+    public BlockTree(UTXOSet utxoSet, int minimumDifficultyBits) {
+        this.utxoSet = utxoSet;
+        this.minimumDifficultyBits = minimumDifficultyBits;
+    }
+
+    public void addListener(ChainListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Add a block received or mined. A block whose previous hash is all zeros starts a chain.
+     */
+    public synchronized ChainUpdate add(Block block) {
+        var hashBytes = block.CalculateBlockHash();
+        var hash = new HashKey(hashBytes);
+        var known = nodes.get(hash);
+        if (known != null) return known.invalid ? ChainUpdate.INVALID : ChainUpdate.DUPLICATE;
+
+        Node parent = null;
+        if (!isZero(block.getPreviousHashCode())) {
+            parent = nodes.get(new HashKey(block.getPreviousHashCode()));
+            if (parent == null) return ChainUpdate.ORPHAN;
+            if (parent.invalid) return ChainUpdate.INVALID;
+        }
+        if (ChainValidator.checkBlock(block, hashBytes, minimumDifficultyBits) != null) return ChainUpdate.INVALID;
+
+        var node = new Node(block, hash, parent);
+        nodes.put(hash, node);
+        var tip = getTipNode();
+        if (tip != null && node.chainWork.compareTo(tip.chainWork) <= 0) return ChainUpdate.SIDE_CHAIN;
+        if (parent == tip) {
+            if (!connect(node)) {
+                node.invalid = true;
+                return ChainUpdate.INVALID;
+            }
+            return ChainUpdate.EXTENDED;
+        }
+        return reorganize(node) ? ChainUpdate.REORGANIZED : ChainUpdate.INVALID;
+    }
+
+    /**
+     * Switch the active chain to the branch ending at newTip.
+     *
+     * @return false if a block of the branch is not valid, the active chain is then the same as before.
+     */
+    private boolean reorganize(Node newTip) {
+        var oldTip = getTipNode();
+        var fork = findFork(oldTip, newTip);
+        disconnectDownTo(fork);
+
+        var branch = pathFrom(fork, newTip);
+        for (int i = 0; i < branch.size(); i++) {
+            if (!connect(branch.get(i))) {
+                // This block and everything built on it in the branch can never be valid
+                for (int j = i; j < branch.size(); j++) {
+                    branch.get(j).invalid = true;
+                }
+                disconnectDownTo(fork);
+                for (var node : pathFrom(fork, oldTip)) {
+                    if (!connect(node)) throw new IllegalStateException("Can't connect back block " + node.hash);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The last block both chains have, null if they don't share any block
+    private static Node findFork(Node a, Node b) {
+        while (a != null && b != null && a != b) {
+            if (a.height >= b.height) {
+                a = a.parent;
+            } else {
+                b = b.parent;
+            }
+        }
+        return (a == b) ? a : null;
+    }
+
+    // The blocks after fork up to tip, in the order they are connected
+    private static List<Node> pathFrom(Node fork, Node tip) {
+        List<Node> path = new ArrayList<>();
+        for (var node = tip; node != fork; node = node.parent) {
+            path.add(node);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * Apply the transactions of the block to the UTXO set and put it on top of the active chain.
+     * The block is applied entirely or not at all.
+     */
+    private boolean connect(Node node) {
+        var event = new BlockConnectedEvent();
+        event.begin();
+        long start = System.nanoTime();
+        var removed = apply(node.block.getTransactions());
+        boolean connected = removed != null;
+        if (connected) {
+            node.undo = UndoRecord.of(node.block.getTransactions(), removed);
+            activeChain.add(node);
+            for (var listener : listeners) {
+                listener.blockConnected(node.block, node.height);
+            }
+        }
+        BlockConnectedEvent.record(event, start, node.height, node.block, connected);
+        return connected;
+    }
+
+    /**
+     * @return The UTXOs removed for each transaction, null if the block is not valid (nothing is changed then).
+     */
+    private List<List<UTXO>> apply(List<Transaction> transactions) {
+        var miner = Miner.getInstance();
+        List<List<UTXO>> removed = new ArrayList<>(transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            var tx = transactions.get(i);
+            // Usually a cache hit, the transaction has been checked when it went through the mempool
+            var spent = miner.isSignatureValid(tx) ? utxoSet.spend(tx) : null;
+            if (spent == null) {
+                for (int j = i - 1; j >= 0; j--) {
+                    utxoSet.unspend(removed.get(j), transactions.get(j).getOutputs());
+                }
+                return null;
+            }
+            removed.add(spent);
+        }
+        return removed;
+    }
+
+    private void disconnectDownTo(Node fork) {
+        int forkHeight = (fork == null) ? -1 : fork.height;
+        while (activeChain.size() - 1 > forkHeight) {
+            var node = activeChain.remove(activeChain.size() - 1);
+            node.undo.undo(utxoSet);
+            node.undo = null;
+            for (var listener : listeners) {
+                listener.blockDisconnected(node.block, node.height);
+            }
+        }
+    }
+
+    private static boolean isZero(byte[] hash) {
+        for (byte b : hash) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    private Node getTipNode() {
+        return activeChain.isEmpty() ? null : activeChain.get(activeChain.size() - 1);
+    }
+
+    /**
+     * The last block of the active chain, null if there is none
+     */
+    public synchronized Block getTip() {
+        var tip = getTipNode();
+        return (tip == null) ? null : tip.block;
+    }
+
+    /**
+     * Number of blocks in the active chain
+     */
+    public synchronized int getHeight() {
+        return activeChain.size();
+    }
+
+    /**
+     * The block at this height in the active chain
+     */
+    public synchronized Block getBlock(int height) {
+        return activeChain.get(height).block;
+    }
+
+    /**
+     * A known block, active or not, null if there is none with this hash
+     */
+    public synchronized Block getBlock(byte[] blockHash) {
+        var node = nodes.get(new HashKey(blockHash));
+        return (node == null) ? null : node.block;
+    }
+
+    public synchronized boolean contains(byte[] blockHash) {
+        return nodes.containsKey(new HashKey(blockHash));
+    }
+
+    /**
+     * True if the block is in the active chain
+     */
+    public synchronized boolean isActive(byte[] blockHash) {
+        var node = nodes.get(new HashKey(blockHash));
+        return node != null && node.undo != null;
+    }
+
+    /**
+     * Total work of the active chain
+     */
+    public synchronized BigInteger getChainWork() {
+        var tip = getTipNode();
+        return (tip == null) ? BigInteger.ZERO : tip.chainWork;
+    }
+
+    /**
+     * Number of known blocks, on all the branches
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+}
@@ -0,0 +1,12 @@
+package org.sharnalk;
+
+/**
+ * Told by the BlockTree when the active chain changes.
+ * During a reorganization the old blocks are disconnected from the tip down, then the new ones connected from the fork up.
+ * Called while the BlockTree is locked, keep it short.
+ */
+public interface ChainListener {
+    void blockConnected(Block block, int height);
+
+    void blockDisconnected(Block block, int height);
+}
@@ -0,0 +1,19 @@
+package org.sharnalk;
+
+/**
+ * What BlockTree.add did with a block
+ */
+public enum ChainUpdate {
+    // The block is the new tip, on top of the previous one
+    EXTENDED,
+    // The block is the new tip, on a fork with more work than the previous active chain
+    REORGANIZED,
+    // Stored on a fork with less work, it may become active later
+    SIDE_CHAIN,
+    // Already known
+    DUPLICATE,
+    // The parent is not known, the block is not stored
+    ORPHAN,
+    // Bad proof of work, merkle root, signature or UTXO, or on top of such a block
+    INVALID
+}
@@ -0,0 +1,54 @@
+package org.sharnalk;
+
+/**
+ * Result of a ChainValidator run : how many blocks have been applied and, if the chain is not valid,
+ * the height of the first bad block and why it has been rejected.
+ */
+public class ChainValidationResult {
+    private final int blocksApplied;
+    private final int failedHeight;
+    private final String reason;
+    private final long elapsedNanos;
+
+    public ChainValidationResult(int blocksApplied, int failedHeight, String reason, long elapsedNanos) {
+        this.blocksApplied = blocksApplied;
+        this.failedHeight = failedHeight;
+        this.reason = reason;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public boolean isValid() {
+        return failedHeight < 0;
+    }
+
+    /**
+     * Number of blocks applied to the UTXO set, all the blocks before the first bad one
+     */
+    public int getBlocksApplied() {
+        return blocksApplied;
+    }
+
+    /**
+     * Height of the first bad block, -1 if the chain is valid
+     */
+    public int getFailedHeight() {
+        return failedHeight;
+    }
+
+    /**
+     * Why the block has been rejected, null if the chain is valid
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        if (isValid()) return blocksApplied + " blocks valid";
+        return "Block " + failedHeight + " not valid : " + reason;
+    }
+}
@@ -0,0 +1,199 @@
+package org.sharnalk;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntFunction;
+
+/**
+ * Validate a whole chain, to audit it or to import it at startup (initial sync).
+ *
+ * The work is done in two stages :
+ *  - on all the cores, each block is checked on its own : header hash, proof of work, merkle root,
+ *    and the signature of each transaction. None of this depends on the other blocks.
+ *  - on the calling thread, in the chain order : the link with the previous block, then the transactions
+ *    are applied to the UTXO set. This stage has to be sequential, but it only does map lookups.
+ * The first stage runs up to WINDOW blocks ahead of the second one, so both stages work at the same time
+ * and the blocks waiting to be applied don't pile up in memory.
+ */
+public class ChainValidator {
+    private static final int WINDOW = 64;
+
+    private final UTXOSet utxoSet;
+    private final int minimumDifficultyBits;
+    private final ExecutorService pool;
+
+    /**
+     * @param utxoSet The set the blocks are applied to, it must hold the UTXOs existing before the first block.
+     * @param minimumDifficultyBits The proof of work every block must have at least.
+     */
+    public ChainValidator(UTXOSet utxoSet, int minimumDifficultyBits) {
+        this.utxoSet = utxoSet;
+        this.minimumDifficultyBits = minimumDifficultyBits;
+        this.pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            var thread = new Thread(runnable, "chain-validator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // A block after the first stage
+    private static final class CheckedBlock {
+        final Block block;
+        final byte[] hash;
+        final String error;
+        final List<CompletableFuture<Boolean>> signatures;
+
+        CheckedBlock(Block block, byte[] hash, String error, List<CompletableFuture<Boolean>> signatures) {
+            this.block = block;
+            this.hash = hash;
+            this.error = error;
+            this.signatures = signatures;
+        }
+    }
+
+    /**
+     * Validate a chain starting at the first block (its previous hash is all zeros)
+     */
+    public ChainValidationResult validate(List<Block> chain) {
+        return validate(chain, new byte[Sha256.DIGEST_SIZE]);
+    }
+
+    /**
+     * Validate blocks following the block with the hash parentHash, the heights of the result are positions in the list.
+     * The valid blocks are applied to the UTXO set, the first bad block and the ones after it are not.
+     */
+    public ChainValidationResult validate(List<Block> blocks, byte[] parentHash) {
+        return run(blocks.size(), blocks::get, parentHash);
+    }
+
+    /**
+     * Validate all the blocks of the store, from the first one. The blocks are decoded in the first stage too.
+     */
+    public ChainValidationResult validate(BlockStore blockStore) {
+        return run(blockStore.getHeight(), height -> {
+            try {
+                return blockStore.getBlock(height);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, new byte[Sha256.DIGEST_SIZE]);
+    }
+
+    private ChainValidationResult run(int count, IntFunction<Block> blocks, byte[] parentHash) {
+        long start = System.nanoTime();
+        var pending = new ArrayDeque<CompletableFuture<CheckedBlock>>();
+        int next = 0;
+        var previousHash = parentHash;
+        try {
+            for (int height = 0; height < count; height++) {
+                while (next < count && next < height + WINDOW) {
+                    final int h = next++;
+                    pending.add(CompletableFuture.supplyAsync(() -> check(blocks.apply(h)), pool));
+                }
+                CheckedBlock checked;
+                try {
+                    checked = pending.poll().join();
+                } catch (CompletionException e) {
+                    return failure(height, "Can't read the block : " + e.getCause().getMessage(), start);
+                }
+                if (checked.error != null) return failure(height, checked.error, start);
+                if (!Arrays.equals(checked.block.getPreviousHashCode(), previousHash)) {
+                    return failure(height, "Does not follow the previous block", start);
+                }
+                var error = apply(checked);
+                if (error != null) return failure(height, error, start);
+                previousHash = checked.hash;
+            }
+            return new ChainValidationResult(count, -1, null, System.nanoTime() - start);
+        } finally {
+            for (var future : pending) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static ChainValidationResult failure(int height, String reason, long start) {
+        return new ChainValidationResult(height, height, reason, System.nanoTime() - start);
+    }
+
+    // First stage, runs on the pool
+    private CheckedBlock check(Block block) {
+        var hash = block.CalculateBlockHash();
+        var error = checkBlock(block, hash, minimumDifficultyBits);
+        if (error != null) return new CheckedBlock(block, hash, error, null);
+        // Each signature is a task of its own, a big block is spread on all the cores too
+        var transactions = block.getTransactions();
+        var miner = Miner.getInstance();
+        List<CompletableFuture<Boolean>> signatures = new ArrayList<>(transactions.size());
+        for (var tx : transactions) {
+            signatures.add(CompletableFuture.supplyAsync(() -> miner.isSignatureValid(tx), pool));
+        }
+        return new CheckedBlock(block, hash, null, signatures);
+    }
+
+    /**
+     * The checks of a block which don't need the rest of the chain nor the signatures : header hash, proof of work
+     * and merkle root. Also used by BlockTree when a block arrives.
+     *
+     * @param hash The hash of the header, computed by the caller.
+     * @return null if the block passes, the reason otherwise.
+     */
+    static String checkBlock(Block block, byte[] hash, int minimumDifficultyBits) {
+        if (block.getBlockHashCode() != null && !Arrays.equals(hash, block.getBlockHashCode())) {
+            return "Block hash does not match its header";
+        }
+        if (block.getDifficultyBits() < minimumDifficultyBits || !MiningEngine.meetsDifficulty(hash, block.getDifficultyBits())) {
+            return "Not enough proof of work";
+        }
+        var transactions = block.getTransactions();
+        List<byte[]> leaves = new ArrayList<>(transactions.size());
+        for (var tx : transactions) {
+            leaves.add(tx.getTxId());
+        }
+        if (!Arrays.equals(MerkleTree.build(leaves).getRoot(), block.getMerkleRoot())) {
+            return "Merkle root does not match the transactions";
+        }
+        return null;
+    }
+
+    /**
+     * Second stage, apply the transactions of the block in order.
+     * If one of them is not valid, the ones already applied are undone so the block is applied entirely or not at all.
+     *
+     * @return null if the block has been applied, the reason otherwise.
+     */
+    private String apply(CheckedBlock checked) {
+        var transactions = checked.block.getTransactions();
+        List<List<UTXO>> removed = new ArrayList<>(transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            var tx = transactions.get(i);
+            String error = null;
+            List<UTXO> spent = null;
+            if (!checked.signatures.get(i).join()) {
+                error = "Transaction " + i + " has an invalid signature";
+            } else if ((spent = utxoSet.spend(tx)) == null) {
+                error = "Transaction " + i + " spends a missing UTXO or one of another owner";
+            }
+            if (error != null) {
+                for (int j = i - 1; j >= 0; j--) {
+                    utxoSet.unspend(removed.get(j), transactions.get(j).getOutputs());
+                }
+                return error;
+            }
+            removed.add(spent);
+        }
+        return null;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,16 @@
+package org.sharnalk;
+
+import java.util.List;
+
+/**
+ * Chooses which UTXOs of a wallet pay a transaction. See CoinSelectors for the available strategies.
+ */
+@FunctionalInterface
+public interface CoinSelector {
+    /**
+     * @param utxos The UTXOs of the wallet, nothing is removed from it.
+     * @param target The amount to cover (amount sent plus fee).
+     * @return UTXOs whose sum is at least target, or null if the wallet can't cover it.
+     */
+    List<UTXO> select(WalletUTXOIndex utxos, long target);
+}
@@ -0,0 +1,121 @@
+package org.sharnalk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The coin selection strategies a Wallet can use.
+ *  - largestFirst : takes the biggest UTXOs first, few inputs so small transactions.
+ *  - smallestFirst : takes the smallest UTXOs first, cleans up the dust of the wallet but makes bigger transactions.
+ *  - branchAndBound : looks for a set of UTXOs matching the amount exactly (within a tolerance),
+ *    so no change output is needed. Falls back to largestFirst when there is no such set.
+ * They only walk the sorted UTXOs of the WalletUTXOIndex from one end, never the whole wallet.
+ */
+public final class CoinSelectors {
+    // Branch and bound gives up after this many steps, and only looks at this many UTXOs
+    private static final int MAX_TRIES = 100_000;
+    private static final int MAX_CANDIDATES = 1_000;
+    // Leftover under which no change output is worth creating, by default only an exact match
+    private static final long DEFAULT_TOLERANCE = 0;
+
+    private CoinSelectors() {
+    }
+
+    public static CoinSelector largestFirst() {
+        return (utxos, target) -> accumulate(utxos.descending(), target);
+    }
+
+    public static CoinSelector smallestFirst() {
+        return (utxos, target) -> accumulate(utxos.ascending(), target);
+    }
+
+    public static CoinSelector branchAndBound() {
+        return branchAndBound(DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * @param tolerance How much more than the target (in units) the selection may be and still count as an exact match.
+     */
+    public static CoinSelector branchAndBound(long tolerance) {
+        if (tolerance < 0) throw new IllegalArgumentException("Tolerance can't be negative.");
+        return (utxos, target) -> {
+            var exact = searchExactMatch(utxos, target, tolerance);
+            return exact != null ? exact : accumulate(utxos.descending(), target);
+        };
+    }
+
+    private static List<UTXO> accumulate(Iterator<UTXO> utxos, long target) {
+        List<UTXO> selected = new ArrayList<>();
+        long total = 0;
+        while (total < target && utxos.hasNext()) {
+            var utxo = utxos.next();
+            selected.add(utxo);
+            total = Amount.add(total, utxo.getAmount());
+        }
+        return total >= target ? selected : null;
+    }
+
+    private static List<UTXO> searchExactMatch(WalletUTXOIndex utxos, long target, long tolerance) {
+        long limit = Amount.add(target, tolerance);
+        // A single UTXO in the window is the best match possible
+        var single = utxos.smallestAtLeast(target);
+        if (single != null && single.getAmount() <= limit) return List.of(single);
+
+        // The largest UTXOs not above the window, from the largest to the smallest
+        List<UTXO> candidates = new ArrayList<>();
+        var iterator = utxos.descendingUpTo(limit);
+        while (iterator.hasNext() && candidates.size() < MAX_CANDIDATES) {
+            candidates.add(iterator.next());
+        }
+        // remaining[i] is the sum of the candidates from i to the end, used to cut the branches which can't reach the target
+        var remaining = new long[candidates.size() + 1];
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            remaining[i] = Amount.add(remaining[i + 1], candidates.get(i).getAmount());
+        }
+        if (remaining[0] < target) return null;
+
+        var search = new BranchAndBound(candidates, remaining, target, limit);
+        return search.run(0, 0) ? search.result() : null;
+    }
+
+    /**
+     * Depth first search : for each candidate, first try with it then without it.
+     * A branch stops when its sum goes over the window or when the remaining candidates can't reach the target.
+     */
+    private static final class BranchAndBound {
+        private final List<UTXO> candidates;
+        private final long[] remaining;
+        private final long target;
+        private final long limit; // target + tolerance
+        private final boolean[] taken;
+        private int tries;
+
+        BranchAndBound(List<UTXO> candidates, long[] remaining, long target, long limit) {
+            this.candidates = candidates;
+            this.remaining = remaining;
+            this.target = target;
+            this.limit = limit;
+            this.taken = new boolean[candidates.size()];
+        }
+
+        boolean run(int index, long total) {
+            if (++tries > MAX_TRIES) return false;
+            if (total >= target) return total <= limit;
+            if (index == candidates.size() || total + remaining[index] < target) return false;
+
+            taken[index] = true;
+            if (run(index + 1, total + candidates.get(index).getAmount())) return true;
+            taken[index] = false;
+            return run(index + 1, total);
+        }
+
+        List<UTXO> result() {
+            List<UTXO> selected = new ArrayList<>();
+            for (int i = 0; i < taken.length; i++) {
+                if (taken[i]) selected.add(candidates.get(i));
+            }
+            return selected;
+        }
+    }
+}
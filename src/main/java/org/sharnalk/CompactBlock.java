@@ -0,0 +1,112 @@
+package org.sharnalk;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A block sent as its header and a short ID for each transaction, instead of the transactions themselves.
+ * The node receiving it already has most of the transactions in its Mempool : it rebuilds the block from them
+ * (see PartialBlock) and only asks for the missing ones, so the size sent depends on what the receiver misses,
+ * not on the size of the block.
+ *
+ * Short ID = the first 6 bytes of SHA-256(salt | txId). The salt is chosen at random for each compact block,
+ * so nobody can make transactions whose short IDs collide on purpose. A collision by chance is caught by the
+ * merkle root of the header : the block is then rebuilt with all its transactions.
+ */
+public class CompactBlock {
+    public static final int SHORT_ID_SIZE = 6;
+
+    private final byte[] previousHashCode;
+    private final byte[] merkleRoot;
+    private final long timestamp;
+    private final int difficultyBits;
+    private final int nonce;
+    private final long salt;
+    private final long[] shortIds;
+
+    CompactBlock(byte[] previousHashCode, byte[] merkleRoot, long timestamp, int difficultyBits, int nonce,
+                 long salt, long[] shortIds) {
+        this.previousHashCode = previousHashCode;
+        this.merkleRoot = merkleRoot;
+        this.timestamp = timestamp;
+        this.difficultyBits = difficultyBits;
+        this.nonce = nonce;
+        this.salt = salt;
+        this.shortIds = shortIds;
+    }
+
+    /**
+     * The compact form of a mined block, with a new random salt
+     */
+    public static CompactBlock of(Block block) {
+        long salt = ThreadLocalRandom.current().nextLong();
+        var transactions = block.getTransactions();
+        var shortIds = new long[transactions.size()];
+        for (int i = 0; i < shortIds.length; i++) {
+            shortIds[i] = shortId(salt, transactions.get(i).getTxId());
+        }
+        return new CompactBlock(block.getPreviousHashCode(), block.getMerkleRoot(), block.getTimestamp(),
+                block.getDifficultyBits(), block.getNonce(), salt, shortIds);
+    }
+
+    public static long shortId(long salt, byte[] txId) {
+        var hash = Hashing.sha256(ByteBuffer.allocate(Long.BYTES).putLong(salt).array(), txId);
+        long id = 0;
+        for (int i = 0; i < SHORT_ID_SIZE; i++) {
+            id = (id << 8) | (hash[i] & 0xFF);
+        }
+        return id;
+    }
+
+    /**
+     * Same header as the full block, see Block.getHeaderBytes()
+     */
+    public byte[] getHeaderBytes() {
+        return ByteBuffer.allocate(Block.HEADER_SIZE)
+                .put(previousHashCode)
+                .put(merkleRoot)
+                .putLong(timestamp)
+                .putInt(difficultyBits)
+                .putInt(nonce)
+                .array();
+    }
+
+    /**
+     * Hash of the full block, known before it is rebuilt
+     */
+    public byte[] getBlockHash() {
+        return Hashing.sha256(getHeaderBytes());
+    }
+
+    public byte[] getPreviousHashCode() {
+        return previousHashCode;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getDifficultyBits() {
+        return difficultyBits;
+    }
+
+    public int getNonce() {
+        return nonce;
+    }
+
+    public long getSalt() {
+        return salt;
+    }
+
+    public int getTransactionCount() {
+        return shortIds.length;
+    }
+
+    public long getShortId(int index) {
+        return shortIds[index];
+    }
+}
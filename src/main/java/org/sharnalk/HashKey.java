@@ -0,0 +1,39 @@
+package org.sharnalk;
+
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * A hash (txId, block hash...) usable as a key of a HashMap, which compares the bytes and not the array reference
+ */
+public final class HashKey {
+    private final byte[] bytes;
+    private final int hash;
+
+    public HashKey(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof HashKey)) return false;
+        var other = (HashKey) o;
+        return hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return HexFormat.of().formatHex(bytes);
+    }
+}
@@ -0,0 +1,56 @@
+package org.sharnalk;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+/**
+ * SHA-256 helpers.
+ * MessageDigest.getInstance is slow (it looks up the security providers each time) and a MessageDigest
+ * is not thread-safe, so each thread keeps its own instance and reuses it.
+ */
+public final class Hashing {
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available in the JDK.", e);
+        }
+    });
+
+    // A key hash is the start of the SHA-256 of the encoded key, 20 bytes like a Bitcoin address
+    public static final int KEY_HASH_SIZE = 20;
+
+    private Hashing() {
+    }
+
+    public static byte[] sha256(byte[] data) {
+        return SHA_256.get().digest(data);
+    }
+
+    /**
+     * SHA-256 of the SHA-256, used for the transaction ids
+     */
+    public static byte[] doubleSha256(byte[] data) {
+        var digest = SHA_256.get();
+        return digest.digest(digest.digest(data));
+    }
+
+    /**
+     * Hash of left followed by right, used for the nodes of the merkle tree
+     */
+    public static byte[] sha256(byte[] left, byte[] right) {
+        var digest = SHA_256.get();
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    /**
+     * Short fixed size footprint of a public key, used instead of the full key in the binary format
+     */
+    public static byte[] keyHash(PublicKey publicKey) {
+        return Arrays.copyOf(sha256(publicKey.getEncoded()), KEY_HASH_SIZE);
+    }
+}
@@ -0,0 +1,79 @@
+package org.sharnalk;
+
+import java.security.KeyPair;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Key pairs generated in advance, so creating a Wallet does not wait for the key generation
+ * (tens to hundreds of milliseconds for RSA 2048).
+ * Background threads with a low priority keep the pool filled, take() only generates a key itself
+ * when the pool is empty.
+ */
+public class KeyPool {
+    public static final int DEFAULT_SIZE = 16;
+    private static final Map<SignatureScheme, KeyPool> POOLS = new ConcurrentHashMap<>();
+
+    private final SignatureScheme scheme;
+    private final int targetSize;
+    private final LinkedBlockingQueue<KeyPair> ready = new LinkedBlockingQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(); // keys being generated
+    private final ExecutorService generators;
+
+    public KeyPool(SignatureScheme scheme, int targetSize) {
+        this.scheme = scheme;
+        this.targetSize = targetSize;
+        // Leave a core to the caller
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.generators = Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "key-generator-" + scheme.name().toLowerCase());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        refill();
+    }
+
+    /**
+     * The shared pool of a scheme, created and started the first time it is asked for
+     */
+    public static KeyPool forScheme(SignatureScheme scheme) {
+        return POOLS.computeIfAbsent(scheme, s -> new KeyPool(s, DEFAULT_SIZE));
+    }
+
+    /**
+     * A key pair never given before, from the pool if one is ready
+     */
+    public KeyPair take() {
+        var keyPair = ready.poll();
+        refill();
+        return keyPair != null ? keyPair : scheme.generateKeyPair();
+    }
+
+    private void refill() {
+        while (true) {
+            int inFlight = pending.get();
+            if (ready.size() + inFlight >= targetSize) return;
+            if (!pending.compareAndSet(inFlight, inFlight + 1)) continue;
+            generators.execute(() -> {
+                try {
+                    ready.offer(scheme.generateKeyPair());
+                } finally {
+                    pending.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    public int available() {
+        return ready.size();
+    }
+
+    public SignatureScheme getScheme() {
+        return scheme;
+    }
+}
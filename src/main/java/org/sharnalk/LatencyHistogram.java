@@ -0,0 +1,94 @@
+package org.sharnalk;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds, written by many threads without locks.
+ * The buckets are log-linear like HdrHistogram : each power of two is split in 16 buckets, so a percentile is known
+ * within about 6 % whatever the range (from nanoseconds to minutes) and recording is one array increment.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucketIndex(nanos));
+        count.increment();
+        total.add(nanos);
+        // Read first, the max rarely changes and the CAS would make all the threads fight for the same line
+        if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * The values under 16 have a bucket each, above the leading one bit chooses the power of two
+     * and the 4 bits after it the bucket inside it.
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The largest value going in this bucket
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return total.sum();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    /**
+     * Value under which this share of the recorded values are (0.99 for p99), rounded up to its bucket.
+     * The buckets are read one by one while other threads record, it is only as exact as a snapshot can be.
+     */
+    public long getPercentileNanos(double percentile) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += counts.get(i);
+        }
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(bucketUpperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count %d, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us",
+                getCount(), getMeanNanos() / 1e3, getPercentileNanos(0.50) / 1e3,
+                getPercentileNanos(0.99) / 1e3, getMaxNanos() / 1e3);
+    }
+}
@@ -0,0 +1,149 @@
+package org.sharnalk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends transactions between generated wallets to a Node at a fixed rate, and measures how long each one takes
+ * to be included in a block. Used to know how many transactions per second the node can take, and with which latency.
+ *
+ * Each wallet gets many UTXOs up front : a wallet only gets its change back once the block is mined,
+ * with a single UTXO it could send one transaction per block.
+ * The wallets are split between the threads so the senders don't wait for each other, the thread connecting
+ * the blocks gives them their UTXOs back at the same time (Wallet is synchronized for that).
+ *
+ * Run : java -cp target/classes org.sharnalk.LoadGenerator [wallets] [transactions per second] [seconds]
+ */
+public class LoadGenerator {
+    private static final long AMOUNT = 1; // one base unit per transaction
+    private static final long FEE = 1;
+
+    private final Node node;
+    private final List<Wallet> wallets = new ArrayList<>();
+    private final int threads;
+
+    /**
+     * @param utxosPerWallet Number of one coin UTXOs each wallet starts with, about the number of transactions it can send.
+     * @param threads Number of threads sending the transactions.
+     */
+    public LoadGenerator(Node node, int walletCount, int utxosPerWallet, int threads, SignatureScheme scheme) throws Exception {
+        if (walletCount < 2) throw new IllegalArgumentException("At least two wallets are needed.");
+        if (threads <= 0 || threads > walletCount) throw new IllegalArgumentException("Between 1 and walletCount threads.");
+        this.node = node;
+        this.threads = threads;
+        for (int i = 0; i < walletCount; i++) {
+            var wallet = new Wallet(Amount.ofCoins(1), scheme);
+            for (int j = 1; j < utxosPerWallet; j++) {
+                // Through the factory, so the balance of the address counts them
+                WalletFactory.getInstance().fund(wallet, Amount.ofCoins(1));
+            }
+            wallets.add(wallet);
+        }
+    }
+
+    /**
+     * Send transactions at the given rate for durationMillis, then wait up to drainMillis for the last ones
+     * to be included. The node must be mining (see Node.startMining).
+     */
+    public LoadReport run(double transactionsPerSecond, long durationMillis, long drainMillis) throws InterruptedException {
+        var submitted = new LongAdder();
+        var refused = new LongAdder();
+        var included = new LongAdder();
+        var latencies = new ConcurrentLinkedQueue<Long>();
+        var outstanding = new ConcurrentLinkedQueue<CompletableFuture<Block>>();
+        var lastInclusion = new AtomicLong();
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long period = (long) (threads * 1_000_000_000.0 / transactionsPerSecond); // between two sends of one thread
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "load-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int t = 0; t < threads; t++) {
+            final int threadIndex = t;
+            pool.execute(() -> {
+                List<Wallet> own = new ArrayList<>();
+                for (int i = threadIndex; i < wallets.size(); i += threads) {
+                    own.add(wallets.get(i));
+                }
+                var random = ThreadLocalRandom.current();
+                long next = start + period * threadIndex / threads; // the threads don't all send at the same instant
+                for (int k = 0; next < end; k++, next += period) {
+                    LockSupport.parkNanos(next - System.nanoTime());
+                    var sender = own.get(k % own.size());
+                    var recipient = wallets.get(random.nextInt(wallets.size()));
+                    submitted.increment();
+                    Transaction tx;
+                    try {
+                        tx = sender.createTransactions(recipient.getPublicKey(), AMOUNT, FEE);
+                    } catch (Exception e) {
+                        refused.increment(); // no funds left until the next block
+                        continue;
+                    }
+                    long sentAt = System.nanoTime();
+                    var inclusion = node.submit(tx);
+                    if (inclusion.isCompletedExceptionally()) {
+                        refused.increment();
+                        continue;
+                    }
+                    outstanding.add(inclusion.whenComplete((block, error) -> {
+                        if (error != null) return;
+                        long now = System.nanoTime();
+                        latencies.add(now - sentAt);
+                        included.increment();
+                        lastInclusion.accumulateAndGet(now, Math::max);
+                    }));
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(durationMillis + drainMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            CompletableFuture.allOf(outstanding.toArray(new CompletableFuture<?>[0])).get(drainMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // Some were dropped or are still waiting, they are counted as dropped
+        }
+        long[] values = new long[latencies.size()];
+        int i = 0;
+        for (var latency : latencies) {
+            if (i == values.length) break;
+            values[i++] = latency;
+        }
+        long includedCount = included.sum();
+        long dropped = submitted.sum() - refused.sum() - includedCount;
+        long elapsed = lastInclusion.get() == 0 ? 0 : lastInclusion.get() - start;
+        return new LoadReport(submitted.sum(), refused.sum(), includedCount, dropped, elapsed, values);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int walletCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        double transactionsPerSecond = args.length > 1 ? Double.parseDouble(args[1]) : 200;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int threads = Math.min(walletCount, Math.max(4, Runtime.getRuntime().availableProcessors() * 4));
+        int utxosPerWallet = (int) Math.ceil(transactionsPerSecond * seconds / walletCount) + 1;
+
+        try (var node = new Node(12, 5_000)) {
+            var generator = new LoadGenerator(node, walletCount, utxosPerWallet, threads, SignatureScheme.ED25519);
+            node.startMining(1_000);
+            var report = generator.run(transactionsPerSecond, seconds * 1_000L, 30_000);
+            System.out.println(report);
+            System.out.println(node.getHeight() + " blocks mined");
+            System.out.println(Metrics.getInstance());
+        }
+    }
+}
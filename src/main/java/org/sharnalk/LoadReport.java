@@ -0,0 +1,79 @@
+package org.sharnalk;
+
+import java.util.Arrays;
+
+/**
+ * Result of a LoadGenerator run : how many transactions went through and how long they waited
+ * from their submission to the block including them.
+ */
+public class LoadReport {
+    private final long submitted;
+    private final long refused;
+    private final long included;
+    private final long dropped;
+    private final long elapsedNanos;
+    private final long[] latenciesNanos; // sorted
+
+    public LoadReport(long submitted, long refused, long included, long dropped, long elapsedNanos, long[] latenciesNanos) {
+        this.submitted = submitted;
+        this.refused = refused;
+        this.included = included;
+        this.dropped = dropped;
+        this.elapsedNanos = elapsedNanos;
+        this.latenciesNanos = latenciesNanos.clone();
+        Arrays.sort(this.latenciesNanos);
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * Refused by the mempool, or the wallet had no funds left until the next block
+     */
+    public long getRefused() {
+        return refused;
+    }
+
+    public long getIncluded() {
+        return included;
+    }
+
+    /**
+     * Accepted by the mempool but not included : dropped at the block assembly, or still waiting at the end of the run
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Transactions included in a block per second, from the first submission to the last inclusion
+     */
+    public double getThroughput() {
+        if (elapsedNanos == 0) return 0;
+        return included * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    /**
+     * Latency from submission to inclusion under which this share of the transactions are (0.5 for the median)
+     */
+    public long getLatencyPercentileNanos(double percentile) {
+        if (latenciesNanos.length == 0) return 0;
+        int index = (int) Math.ceil(percentile * latenciesNanos.length) - 1;
+        return latenciesNanos[Math.max(0, Math.min(index, latenciesNanos.length - 1))];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("submitted %d, refused %d, included %d, dropped %d%n"
+                        + "throughput %.1f tx/s%n"
+                        + "latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                submitted, refused, included, dropped, getThroughput(),
+                getLatencyPercentileNanos(0.50) / 1e6, getLatencyPercentileNanos(0.90) / 1e6,
+                getLatencyPercentileNanos(0.99) / 1e6, getLatencyPercentileNanos(1.0) / 1e6);
+    }
+}
@@ -0,0 +1,295 @@
+package org.sharnalk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The Mempool holds the transactions waiting to be put in a block.
+ * They are kept ordered by fee rate (fee per byte of transaction data), so the miner takes the most
+ * profitable ones first. Each UTXO spent by a pooled transaction is indexed : a second transaction spending it
+ * is refused right away, without scanning the pool.
+ * The inputs are looked up at admission, in the UTXO set or in the outputs of a pooled transaction : the fee
+ * and the priority come from the UTXOs really spent, not from the amounts the sender declares.
+ * The pool is bounded in number of transactions and in bytes. When it is full, a new transaction only gets in
+ * if it pays a better fee rate than the ones it pushes out. A transaction pushed out takes its descendants with it,
+ * they could not be mined without it.
+ */
+public class Mempool {
+    public static final int DEFAULT_MAX_TRANSACTIONS = 50_000;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final class Entry {
+        final Transaction transaction;
+        final HashKey txId;
+        final int size;
+        final double feeRate;
+        final long sequence; // arrival order, for the same fee rate the oldest goes first
+
+        Entry(Transaction transaction, long fee, long sequence) {
+            this.transaction = transaction;
+            this.txId = new HashKey(transaction.getTxId());
+            this.size = transaction.getData().length;
+            this.feeRate = (double) fee / size;
+            this.sequence = sequence;
+        }
+    }
+
+    // Best first : highest fee rate, then oldest
+    private static final Comparator<Entry> PRIORITY = Comparator
+            .comparingDouble((Entry e) -> e.feeRate).reversed()
+            .thenComparingLong(e -> e.sequence);
+
+    private final UTXOSet utxoSet;
+    private final int maxTransactions;
+    private final long maxBytes;
+    private final TreeSet<Entry> byPriority = new TreeSet<>(PRIORITY);
+    private final HashMap<HashKey, Entry> byTxId = new HashMap<>();
+    private final HashMap<OutPoint, Entry> spentOutPoints = new HashMap<>();
+    private long totalBytes;
+    private long sequence;
+    private final List<MempoolListener> listeners = new CopyOnWriteArrayList<>();
+
+    public Mempool() {
+        this(DEFAULT_MAX_TRANSACTIONS, DEFAULT_MAX_BYTES);
+    }
+
+    public Mempool(int maxTransactions, long maxBytes) {
+        this(Miner.getInstance().getGlobalUnspentOutputs(), maxTransactions, maxBytes);
+    }
+
+    /**
+     * @param utxoSet The UTXOs of the active chain, the inputs of a transaction are looked up in it.
+     */
+    public Mempool(UTXOSet utxoSet, int maxTransactions, long maxBytes) {
+        if (maxTransactions <= 0 || maxBytes <= 0) throw new IllegalArgumentException("Mempool limits must be positive.");
+        this.utxoSet = utxoSet;
+        this.maxTransactions = maxTransactions;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add a signed transaction to the pool.
+     *
+     * @return false if the transaction is already in the pool, spends an unknown UTXO, a UTXO of another owner or a UTXO
+     * already spent by a pooled transaction, has a negative fee, has an invalid signature, or if the pool is full
+     * of transactions paying a better fee rate.
+     */
+    public boolean add(Transaction tx) {
+        if (tx.getSignature() == null || tx.getInputs().isEmpty()) return false;
+        // Out of the lock, it is the slow part. The Miner remembers it, the block validation won't check it again
+        if (!Miner.getInstance().isSignatureValid(tx)) return false;
+        var evicted = addVerified(tx);
+        if (evicted == null) return false;
+        for (var worst : evicted) {
+            for (var listener : listeners) listener.transactionRemoved(worst.transaction);
+        }
+        for (var listener : listeners) listener.transactionAdded(tx);
+        return true;
+    }
+
+    /**
+     * @return The entries evicted to make room, null if the transaction is refused.
+     */
+    private synchronized List<Entry> addVerified(Transaction tx) {
+        long fee;
+        try {
+            long inputTotal = 0;
+            for (var input : tx.getInputs()) {
+                if (input.getTxId() == null || spentOutPoints.containsKey(input.getOutPoint())) return null;
+                var spent = resolve(input.getOutPoint());
+                // The input has to say what the UTXO holds, and only its owner can spend it
+                if (spent == null || !UTXOSet.sameOutput(spent, input)
+                        || !Arrays.equals(spent.getKeyHash(), tx.getSenderKeyHash())) return null;
+                inputTotal = Amount.add(inputTotal, spent.getAmount());
+            }
+            fee = Amount.subtract(inputTotal, tx.getOutputTotal());
+        } catch (ArithmeticException e) {
+            return null; // the amounts overflow a long
+        }
+        if (fee < 0) return null;
+
+        var entry = new Entry(tx, fee, sequence++);
+        if (byTxId.containsKey(entry.txId)) return null;
+        if (entry.size > maxBytes) return null;
+
+        // Find the worst entries to evict, each one with its descendants, but only evict them if they are all worse
+        // than the new one. A worst entry whose descendants are better is skipped.
+        var evicted = new LinkedHashSet<Entry>();
+        int count = byPriority.size() + 1;
+        long bytes = totalBytes + entry.size;
+        var worstFirst = byPriority.descendingIterator();
+        while (count > maxTransactions || bytes > maxBytes) {
+            if (!worstFirst.hasNext()) return null;
+            var worst = worstFirst.next();
+            if (PRIORITY.compare(worst, entry) < 0) return null;
+            if (evicted.contains(worst)) continue;
+            var withDescendants = withDescendants(worst);
+            if (!withDescendants.stream().allMatch(e -> evicted.contains(e) || PRIORITY.compare(e, entry) > 0)) continue;
+            for (var e : withDescendants) {
+                if (!evicted.add(e)) continue;
+                count--;
+                bytes -= e.size;
+            }
+        }
+        for (var input : tx.getInputs()) {
+            // The new transaction would lose its parent
+            var parent = byTxId.get(new HashKey(input.getTxId()));
+            if (parent != null && evicted.contains(parent)) return null;
+        }
+        for (var worst : evicted) {
+            removeEntry(worst);
+        }
+
+        byPriority.add(entry);
+        byTxId.put(entry.txId, entry);
+        for (var input : tx.getInputs()) {
+            spentOutPoints.put(input.getOutPoint(), entry);
+        }
+        totalBytes += entry.size;
+        Metrics.getInstance().mempoolChanged(1);
+        return new ArrayList<>(evicted);
+    }
+
+    /**
+     * The entry and the pooled transactions spending its outputs, and theirs, parents before children
+     */
+    private List<Entry> withDescendants(Entry entry) {
+        var found = new LinkedHashSet<Entry>();
+        found.add(entry);
+        var pending = new ArrayList<Entry>();
+        pending.add(entry);
+        while (!pending.isEmpty()) {
+            var parent = pending.remove(pending.size() - 1);
+            var txId = parent.txId.getBytes();
+            for (int i = 0; i < parent.transaction.getOutputs().size(); i++) {
+                var child = spentOutPoints.get(new OutPoint(txId, i));
+                if (child != null && found.add(child)) pending.add(child);
+            }
+        }
+        return new ArrayList<>(found);
+    }
+
+    /**
+     * The UTXO at this outpoint : in the UTXO set, or an output of a pooled transaction. null if there is none.
+     */
+    private UTXO resolve(OutPoint outPoint) {
+        var stored = utxoSet.get(outPoint);
+        if (stored != null) return stored;
+        var parent = byTxId.get(new HashKey(outPoint.getTxId()));
+        if (parent == null) return null;
+        var outputs = parent.transaction.getOutputs();
+        int index = outPoint.getIndex();
+        return (index >= 0 && index < outputs.size()) ? outputs.get(index) : null;
+    }
+
+    public boolean remove(Transaction tx) {
+        if (!removeIfPresent(tx)) return false;
+        for (var listener : listeners) listener.transactionRemoved(tx);
+        return true;
+    }
+
+    private synchronized boolean removeIfPresent(Transaction tx) {
+        var entry = byTxId.get(new HashKey(tx.getTxId()));
+        if (entry == null) return false;
+        removeEntry(entry);
+        return true;
+    }
+
+    public void addListener(MempoolListener listener) {
+        listeners.add(listener);
+    }
+
+    private void removeEntry(Entry entry) {
+        byPriority.remove(entry);
+        byTxId.remove(entry.txId);
+        for (var input : entry.transaction.getInputs()) {
+            spentOutPoints.remove(input.getOutPoint(), entry);
+        }
+        totalBytes -= entry.size;
+        Metrics.getInstance().mempoolChanged(-1);
+    }
+
+    /**
+     * The best transactions of the pool, by fee rate, in one pass. They stay in the pool.
+     * A transaction spending the output of a pooled one comes after it : its parents are put just before it,
+     * so the list can be applied in order (see Miner.verifyTransactions). A transaction whose parents don't all
+     * fit in maxCount is left out.
+     */
+    public synchronized List<Transaction> getTopTransactions(int maxCount) {
+        List<Transaction> top = new ArrayList<>(Math.min(maxCount, byPriority.size()));
+        var taken = new HashSet<Entry>();
+        for (var entry : byPriority) {
+            if (top.size() == maxCount) break;
+            if (taken.contains(entry)) continue;
+            var missing = new LinkedHashSet<Entry>();
+            addAncestors(entry, taken, missing);
+            if (top.size() + missing.size() > maxCount) continue;
+            for (var e : missing) {
+                taken.add(e);
+                top.add(e.transaction);
+            }
+        }
+        return top;
+    }
+
+    // The pooled ancestors of the entry not taken yet, then the entry itself
+    private void addAncestors(Entry entry, HashSet<Entry> taken, LinkedHashSet<Entry> missing) {
+        for (var input : entry.transaction.getInputs()) {
+            var parent = byTxId.get(new HashKey(input.getTxId()));
+            if (parent != null && !taken.contains(parent) && !missing.contains(parent)) addAncestors(parent, taken, missing);
+        }
+        missing.add(entry);
+    }
+
+    /**
+     * True if one of the inputs of the transaction is an output of a pooled transaction
+     */
+    public synchronized boolean hasPooledParent(Transaction tx) {
+        for (var input : tx.getInputs()) {
+            if (input.getTxId() != null && byTxId.containsKey(new HashKey(input.getTxId()))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * All the pooled transactions, in no particular order. Used to rebuild a CompactBlock.
+     */
+    public synchronized List<Transaction> getTransactions() {
+        List<Transaction> transactions = new ArrayList<>(byTxId.size());
+        for (var entry : byTxId.values()) {
+            transactions.add(entry.transaction);
+        }
+        return transactions;
+    }
+
+    public synchronized boolean contains(byte[] txId) {
+        return byTxId.containsKey(new HashKey(txId));
+    }
+
+    public synchronized Transaction get(byte[] txId) {
+        var entry = byTxId.get(new HashKey(txId));
+        return entry == null ? null : entry.transaction;
+    }
+
+    /**
+     * True if a pooled transaction already spends this UTXO
+     */
+    public synchronized boolean isSpent(OutPoint outPoint) {
+        return spentOutPoints.containsKey(outPoint);
+    }
+
+    public synchronized int size() {
+        return byPriority.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+}
@@ -0,0 +1,12 @@
+package org.sharnalk;
+
+/**
+ * Told by the Mempool when a transaction enters or leaves it (included in a block, evicted by a better one, removed).
+ * Called after the Mempool lock is released, so the listener can read the pool, but two calls for the same
+ * transaction made by different threads can come in any order.
+ */
+public interface MempoolListener {
+    void transactionAdded(Transaction tx);
+
+    void transactionRemoved(Transaction tx);
+}
@@ -0,0 +1,25 @@
+package org.sharnalk;
+
+import java.util.List;
+
+/**
+ * Inclusion proof of a transaction in a block : the position of the transaction and the sibling hash
+ * of each level, from the leaves to the root. See MerkleTree.verify to check it.
+ */
+public class MerkleProof {
+    private final int leafIndex;
+    private final List<byte[]> siblings;
+
+    public MerkleProof(int leafIndex, List<byte[]> siblings) {
+        this.leafIndex = leafIndex;
+        this.siblings = List.copyOf(siblings);
+    }
+
+    public int getLeafIndex() {
+        return leafIndex;
+    }
+
+    public List<byte[]> getSiblings() {
+        return siblings;
+    }
+}
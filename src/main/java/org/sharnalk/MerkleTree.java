@@ -0,0 +1,124 @@
+package org.sharnalk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Merkle tree over the transaction IDs of a block.
+ * Each node is the SHA-256 of its two children, the last node of a level is paired with itself when the
+ * level has an odd size (like in Bitcoin). The root commits to all the transactions, and a proof that one
+ * transaction is in the block only needs one sibling hash per level, so log2(n) hashes instead of n.
+ *
+ * All the levels are kept, appending a leaf only recomputes the nodes on its path to the root.
+ */
+public class MerkleTree {
+    // Under this size a level is hashed on the calling thread, splitting the work would cost more than it saves
+    private static final int PARALLEL_THRESHOLD = 1024;
+
+    private final List<List<byte[]>> levels = new ArrayList<>(); // levels.get(0) are the leaves
+
+    public MerkleTree() {
+        levels.add(new ArrayList<>());
+    }
+
+    /**
+     * A tree with the same nodes, appending to one doesn't change the other. Nothing is hashed again.
+     */
+    public MerkleTree copy() {
+        var copy = new MerkleTree();
+        copy.levels.clear();
+        for (var level : levels) {
+            copy.levels.add(new ArrayList<>(level));
+        }
+        return copy;
+    }
+
+    /**
+     * Build the whole tree at once, the big levels are hashed in parallel
+     */
+    public static MerkleTree build(List<byte[]> leaves) {
+        var tree = new MerkleTree();
+        List<byte[]> level = new ArrayList<>(leaves);
+        tree.levels.set(0, level);
+        while (level.size() > 1) {
+            final var children = level;
+            int parentCount = (children.size() + 1) / 2;
+            var parents = new byte[parentCount][];
+            var indexes = IntStream.range(0, parentCount);
+            if (parentCount >= PARALLEL_THRESHOLD) indexes = indexes.parallel();
+            indexes.forEach(i -> parents[i] = hashChildren(children, i));
+            level = new ArrayList<>(Arrays.asList(parents));
+            tree.levels.add(level);
+        }
+        return tree;
+    }
+
+    /**
+     * Add a leaf at the end of the tree, only the path from the new leaf to the root is recomputed
+     */
+    public void append(byte[] leaf) {
+        var leaves = levels.get(0);
+        leaves.add(leaf);
+        int index = leaves.size() - 1;
+        for (int depth = 0; levels.get(depth).size() > 1; depth++) {
+            if (depth + 1 == levels.size()) levels.add(new ArrayList<>());
+            int parentIndex = index / 2;
+            var parent = hashChildren(levels.get(depth), parentIndex);
+            var parents = levels.get(depth + 1);
+            if (parentIndex == parents.size()) parents.add(parent);
+            else parents.set(parentIndex, parent);
+            index = parentIndex;
+        }
+    }
+
+    private static byte[] hashChildren(List<byte[]> children, int parentIndex) {
+        int leftIndex = parentIndex * 2;
+        var left = children.get(leftIndex);
+        var right = (leftIndex + 1 < children.size()) ? children.get(leftIndex + 1) : left;
+        return Hashing.sha256(left, right);
+    }
+
+    /**
+     * The root of the tree, 32 zero bytes when there is no leaf
+     */
+    public byte[] getRoot() {
+        var top = levels.get(levels.size() - 1);
+        return top.isEmpty() ? new byte[Sha256.DIGEST_SIZE] : top.get(0);
+    }
+
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    /**
+     * The sibling hashes needed to go from the leaf at leafIndex to the root
+     */
+    public MerkleProof getProof(int leafIndex) {
+        if (leafIndex < 0 || leafIndex >= size()) throw new IndexOutOfBoundsException("No leaf at index " + leafIndex);
+        List<byte[]> siblings = new ArrayList<>(levels.size() - 1);
+        int index = leafIndex;
+        for (int depth = 0; depth < levels.size() - 1; depth++) {
+            var level = levels.get(depth);
+            int siblingIndex = index ^ 1;
+            siblings.add(siblingIndex < level.size() ? level.get(siblingIndex) : level.get(index));
+            index /= 2;
+        }
+        return new MerkleProof(leafIndex, siblings);
+    }
+
+    /**
+     * Check that the leaf is in the tree having this root, without needing the other leaves
+     */
+    public static boolean verify(byte[] leaf, MerkleProof proof, byte[] root) {
+        var hash = leaf;
+        int index = proof.getLeafIndex();
+        for (var sibling : proof.getSiblings()) {
+            // An even index means we are the left child
+            hash = (index % 2 == 0) ? Hashing.sha256(hash, sibling) : Hashing.sha256(sibling, hash);
+            index /= 2;
+        }
+        return Arrays.equals(hash, root);
+    }
+}
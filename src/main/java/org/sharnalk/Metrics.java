@@ -0,0 +1,118 @@
+package org.sharnalk;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the hot paths : signature verification, UTXO lookups, block hashing,
+ * mining, mempool and block connection. Everything is lock-free (LongAdder, LatencyHistogram), recording costs
+ * a few nanoseconds so it is always on, unlike the println it replaces.
+ * For a per-event view, the same places emit JFR events (see SignatureVerificationEvent, BlockMinedEvent,
+ * BlockConnectedEvent) : start a recording with -XX:StartFlightRecording, they cost nothing when it is off.
+ */
+public class Metrics {
+    // Created by the JVM the first time getInstance() is called, the class loading makes it thread-safe
+    private static class Holder {
+        private static final Metrics INSTANCE = new Metrics();
+    }
+
+    private final LatencyHistogram signatureVerification = new LatencyHistogram();
+    private final LongAdder signaturesRejected = new LongAdder();
+    private final LatencyHistogram utxoLookup = new LatencyHistogram();
+    private final LatencyHistogram blockHashing = new LatencyHistogram();
+    private final LatencyHistogram blockMining = new LatencyHistogram();
+    private final LongAdder hashesComputed = new LongAdder();
+    private final LatencyHistogram blockConnect = new LatencyHistogram();
+    private final LongAdder transactionsConnected = new LongAdder();
+    private final LongAdder transactionsRejected = new LongAdder();
+    private final LongAdder mempoolTransactions = new LongAdder();
+    private final LongAdder miningFailures = new LongAdder();
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Signatures really verified, the SignatureCache hits are not in it (see SignatureCache.getHitCount)
+     */
+    public LatencyHistogram getSignatureVerification() {
+        return signatureVerification;
+    }
+
+    public LongAdder getSignaturesRejected() {
+        return signaturesRejected;
+    }
+
+    public LatencyHistogram getUtxoLookup() {
+        return utxoLookup;
+    }
+
+    /**
+     * Hash of a whole block (merkle root and header), out of the mining loop
+     */
+    public LatencyHistogram getBlockHashing() {
+        return blockHashing;
+    }
+
+    public LatencyHistogram getBlockMining() {
+        return blockMining;
+    }
+
+    public LongAdder getHashesComputed() {
+        return hashesComputed;
+    }
+
+    /**
+     * Hashes per second over all the mined blocks, only the time spent mining counts
+     */
+    public double getHashRate() {
+        long nanos = blockMining.getTotalNanos();
+        return nanos == 0 ? 0 : hashesComputed.sum() * 1_000_000_000.0 / nanos;
+    }
+
+    public LatencyHistogram getBlockConnect() {
+        return blockConnect;
+    }
+
+    public LongAdder getTransactionsConnected() {
+        return transactionsConnected;
+    }
+
+    /**
+     * Transactions refused by Miner.verifyTransaction or when a block is assembled
+     */
+    public LongAdder getTransactionsRejected() {
+        return transactionsRejected;
+    }
+
+    /**
+     * Rounds of background mining which failed with an exception, see Node.startMining
+     */
+    public LongAdder getMiningFailures() {
+        return miningFailures;
+    }
+
+    /**
+     * Transactions in all the mempools of the process
+     */
+    public long getMempoolSize() {
+        return mempoolTransactions.sum();
+    }
+
+    void mempoolChanged(int delta) {
+        mempoolTransactions.add(delta);
+    }
+
+    @Override
+    public String toString() {
+        return "signature verification : " + signatureVerification + ", rejected " + signaturesRejected.sum() + "\n"
+                + "UTXO lookup : " + utxoLookup + "\n"
+                + "block hashing : " + blockHashing + "\n"
+                + "block mining : " + blockMining + String.format(", %.0f hashes/s", getHashRate()) + "\n"
+                + "block connect : " + blockConnect + ", " + transactionsConnected.sum() + " transactions\n"
+                + "transactions rejected : " + transactionsRejected.sum() + ", in mempool : " + getMempoolSize() + "\n"
+                + "mining failures : " + miningFailures.sum();
+    }
+}
@@ -2,67 +2,202 @@ package org.sharnalk;
 
 import java.security.PublicKey;
 import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Represents a Miner in a cryptocurrency system.
  * The Miner class is responsible for verifying the validity of transactions on the blockchain.
  * It checks if the UTXOs used in the transaction are valid, verifies the transaction's signature,
  * and maintains a record of all available UTXOs (unspent outputs) on the blockchain.
+ * The Miner can be used by several threads at once, the UTXOSet makes sure a UTXO is spent only once.
  */
 public class Miner {
-    private static Miner instance;
+    // Created by the JVM the first time getInstance() is called, the class loading makes it thread-safe
+    private static class Holder {
+        private static final Miner INSTANCE = new Miner();
+    }
 
-    public HashSet<UTXO> globalUnspentOutputs;
+    private final UTXOSet globalUnspentOutputs;
+    // Threads checking the signatures of verifyTransactions
+    private final ExecutorService verificationPool;
+    // Signatures already verified, a transaction checked when it entered the Mempool is not checked again in its block
+    private final SignatureCache signatureCache;
 
     private Miner(){
-            this.globalUnspentOutputs = new HashSet<>();
+            this.globalUnspentOutputs = new UTXOSet();
+            this.signatureCache = new SignatureCache();
+            this.verificationPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                var thread = new Thread(runnable, "signature-verifier");
+                thread.setDaemon(true);
+                return thread;
+            });
     }
 
     public static Miner getInstance(){
-        if(instance == null) instance = new Miner();
-        return instance;
+        return Holder.INSTANCE;
     }
 
     public boolean verifyTransaction(Transaction tx) throws Exception {
-        if(verifyUTXOValidity(tx.getInputs())){
-            System.out.println("UTXOs valid");
-            if (verifySignature(tx.getSenderPublicKey(), tx.getData(), tx.getSignature())){
-                System.out.println("Signature valid");
-                addTransaction(tx.getInputs(), tx.getOutputs());
-                return true;
-            }
+        if (verifyUTXOValidity(tx.getInputs()) && verifyAmounts(tx) && isSignatureValid(tx)) {
+            // Another thread may have spent one of the inputs since the check, spend() is the real guard
+            if (addTransaction(tx)) return true;
         }
-        System.out.println("Transaction not valid.");
+        Metrics.getInstance().getTransactionsRejected().increment();
         return false;
     }
 
-    private boolean verifyUTXOValidity(List<UTXO> utxoList){
-        for(var utxo : utxoList){
-            if (globalUnspentOutputs.contains(utxo)) return true;
+    /**
+     * Verify a batch of transactions, typically the ones going in the next block.
+     * The RSA signatures are checked in parallel on the verification pool, it is where almost all the time goes.
+     * The UTXOs are then checked and applied in the order of the list : when two transactions spend the same UTXO,
+     * the first one in the list wins and the other one gets CONFLICT, so the result never depends on the thread timing.
+     * A transaction can spend the outputs of a transaction placed before it in the batch.
+     *
+     * @param transactions The transactions to verify, in the order they should be applied.
+     * @return One verdict per transaction, in the same order. Only the VALID ones have been applied to the UTXO set.
+     */
+    public List<TransactionVerdict> verifyTransactions(List<Transaction> transactions) {
+        List<CompletableFuture<Boolean>> signatures = new ArrayList<>(transactions.size());
+        for (var tx : transactions) {
+            signatures.add(CompletableFuture.supplyAsync(() -> isSignatureValid(tx), verificationPool));
+        }
+
+        List<TransactionVerdict> verdicts = new ArrayList<>(transactions.size());
+        var spentInBatch = new HashSet<OutPoint>();
+        for (int i = 0; i < transactions.size(); i++) {
+            var tx = transactions.get(i);
+            if (!signatures.get(i).join()) {
+                verdicts.add(TransactionVerdict.INVALID_SIGNATURE);
+            } else if (spendsAny(tx.getInputs(), spentInBatch)) {
+                verdicts.add(TransactionVerdict.CONFLICT);
+            } else if (!verifyUTXOValidity(tx.getInputs())) {
+                verdicts.add(TransactionVerdict.MISSING_INPUTS);
+            } else if (!verifyAmounts(tx)) {
+                verdicts.add(TransactionVerdict.INVALID_AMOUNTS);
+            } else if (!addTransaction(tx)) {
+                verdicts.add(TransactionVerdict.MISSING_INPUTS);
+            } else {
+                for (var input : tx.getInputs()) {
+                    spentInBatch.add(input.getOutPoint());
+                }
+                verdicts.add(TransactionVerdict.VALID);
+            }
+        }
+        return verdicts;
+    }
+
+    /**
+     * Build the next block from the best transactions of the mempool, in one pass.
+     * The candidates are verified as a batch, the valid ones go in the block and are applied to the UTXO set.
+     * The pool gives the parents before their children, so a child can be in the same block as its parent.
+     * The valid candidates leave the pool, and so do the invalid ones, except a candidate with missing inputs
+     * whose parent is still pooled : it waits for the block of its parent.
+     *
+     * @param mempool The pool to take the transactions from.
+     * @param previousHashCode The hash of the last block of the chain, null for the first block.
+     * @param maxTransactions The maximum number of transactions in the block.
+     * @return The new block, not mined yet. It can be empty if the pool is empty.
+     */
+    public Block assembleBlock(Mempool mempool, byte[] previousHashCode, int maxTransactions) {
+        var candidates = mempool.getTopTransactions(maxTransactions);
+        var verdicts = verifyTransactions(candidates);
+
+        var block = (previousHashCode == null) ? new Block() : new Block(previousHashCode);
+        for (int i = 0; i < candidates.size(); i++) {
+            var tx = candidates.get(i);
+            var verdict = verdicts.get(i);
+            if (verdict == TransactionVerdict.VALID) {
+                block.addTransaction(tx);
+            } else if (verdict == TransactionVerdict.MISSING_INPUTS && mempool.hasPooledParent(tx)) {
+                continue; // its parent stays in the pool, the candidate waits for it
+            } else {
+                Metrics.getInstance().getTransactionsRejected().increment();
+            }
+            mempool.remove(tx);
+        }
+        return block;
+    }
+
+    /**
+     * Check the signature of the transaction, without touching the UTXOs.
+     * A valid signature is remembered, the next check of the same transaction (in its block) is a cache hit.
+     */
+    public boolean isSignatureValid(Transaction tx) {
+        if (tx.getSignature() == null) return false;
+        if (signatureCache.isVerified(tx)) return true;
+        var event = new SignatureVerificationEvent();
+        event.begin();
+        long start = System.nanoTime();
+        boolean valid;
+        try {
+            valid = verifySignature(tx.getSenderPublicKey(), tx.getTxId(), tx.getSignature());
+        } catch (Exception e) {
+            valid = false; // a malformed key or signature is just an invalid transaction
+        }
+        var metrics = Metrics.getInstance();
+        metrics.getSignatureVerification().record(System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.scheme = tx.getSenderPublicKey().getAlgorithm();
+            event.valid = valid;
+            event.commit();
+        }
+        if (!valid) {
+            metrics.getSignaturesRejected().increment();
+            return false;
+        }
+        signatureCache.markVerified(tx);
+        return true;
+    }
+
+    private static boolean spendsAny(List<UTXO> inputs, HashSet<OutPoint> spent) {
+        for (var input : inputs) {
+            if (input.getTxId() != null && spent.contains(input.getOutPoint())) return true;
         }
         return false;
     }
 
-    private void addTransaction(List<UTXO> inputs, List<UTXO> outputs){
-        //Input consommé
-        for (var input : inputs){
-            globalUnspentOutputs.remove(input);
+    private boolean verifyUTXOValidity(List<UTXO> utxoList){
+        // Every input has to be unspent, not only one of them
+        return !utxoList.isEmpty() && globalUnspentOutputs.containsAll(utxoList);
+    }
+
+    /**
+     * The amounts of the inputs must be the ones of the UTXOs they spend (the fee shown to the Mempool comes from them),
+     * and the outputs can't hold more than the inputs. UTXOSet.spend checks the totals again while it holds the locks.
+     */
+    private boolean verifyAmounts(Transaction tx) {
+        for (var input : tx.getInputs()) {
+            var stored = globalUnspentOutputs.get(input.getOutPoint());
+            if (stored == null || !UTXOSet.sameOutput(stored, input)) return false;
+            // Only the owner of a UTXO can spend it, the signature proves the transaction comes from the sender
+            if (!Arrays.equals(stored.getKeyHash(), tx.getSenderKeyHash())) return false;
         }
-        //Output valide
-        for(var output : outputs){
-            globalUnspentOutputs.add(output);
+        try {
+            return tx.getFee() >= 0;
+        } catch (ArithmeticException e) {
+            return false;
         }
     }
 
+    private boolean addTransaction(Transaction tx){
+        //Input consommé and Output valide, all at once
+        return globalUnspentOutputs.spend(tx) != null;
+    }
+
     /**
-     * Verify the signature with the senderPublicKey always with RSA encryption
+     * Verify the signature of the txId with the senderPublicKey, with the scheme of the key (RSA, ECDSA or Ed25519)
      * Return true is the signature is valid
      * Will permit us to verify it when we transfer money between two Wallet
      * */
     private boolean verifySignature(PublicKey senderPublicKey, byte[] data, byte[] signatureToVerify) throws Exception {
-        Signature signature = Signature.getInstance("SHA256withRSA");
+        // The scheme comes from the key, each thread reuses its verifier (see SignatureScheme)
+        Signature signature = SignatureScheme.of(senderPublicKey).signature();
         signature.initVerify(senderPublicKey);
         signature.update(data);
         return signature.verify(signatureToVerify);
@@ -73,4 +208,12 @@ public class Miner {
         globalUnspentOutputs.add(utxo);
     }
 
+    public UTXOSet getGlobalUnspentOutputs() {
+        return globalUnspentOutputs;
+    }
+
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
 }
@@ -0,0 +1,170 @@
+package org.sharnalk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Proof of Work mining engine.
+ * Mining a block means finding a nonce so that the hash of the block starts with a given number of zero bits
+ * (the difficulty). There is no shortcut, the only way is to try nonces one by one, so the work is split
+ * between all the cores : worker i tries the nonces i, i + workers, i + 2 * workers...
+ * As soon as one worker finds a valid hash all the others stop.
+ *
+ * abort() stops the searches by moving to the next epoch : a search stops when the epoch is not the one it started
+ * with. A miner takes getEpoch() before building its block, so an abort coming while the block is built is not lost,
+ * the search of that block stops at once. Several mine() calls at the same time each have their own stop flag.
+ */
+public class MiningEngine {
+    static final long NONCE_SPACE = 1L << 32; // nonce is an int, we try all of its 2^32 values
+
+    private final int workers;
+    private final ExecutorService pool;
+    private final AtomicLong epoch = new AtomicLong(); // incremented by abort()
+
+    public MiningEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public MiningEngine(int workers) {
+        if (workers <= 0) throw new IllegalArgumentException("At least one worker is needed.");
+        this.workers = workers;
+        this.pool = Executors.newFixedThreadPool(workers, runnable -> {
+            var thread = new Thread(runnable, "miner-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Search a nonce giving a hash with at least difficultyBits leading zero bits.
+     * When a nonce is found, it is stored in the block with its hash.
+     *
+     * @param block The block to mine.
+     * @param difficultyBits The number of leading zero bits wanted.
+     * @return The result of the search with the number of hashes tried and the hash rate, not found if abort() was called.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the workers.
+     */
+    public MiningResult mine(Block block, int difficultyBits) throws InterruptedException {
+        return mine(block, difficultyBits, epoch.get());
+    }
+
+    /**
+     * Same as mine(block, difficultyBits), stopped by any abort() since getEpoch() returned startEpoch.
+     *
+     * @param startEpoch The value of getEpoch() taken before the block was built.
+     */
+    public MiningResult mine(Block block, int difficultyBits, long startEpoch) throws InterruptedException {
+        block.setDifficultyBits(difficultyBits);
+        block.CalculateBlockHash(); // computes the merkle root and midstate once, before the workers share them
+
+        var event = new BlockMinedEvent();
+        event.begin();
+        var found = new AtomicBoolean(false);
+        var winner = new AtomicReference<MiningResult>();
+        var hashes = new LongAdder();
+        long start = System.nanoTime();
+
+        List<Future<?>> futures = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            final long firstNonce = i;
+            futures.add(pool.submit(() -> search(block, difficultyBits, firstNonce, startEpoch, found, winner, hashes)));
+        }
+        try {
+            for (var future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            found.set(true); // stop the other workers
+            throw new IllegalStateException("Mining worker failed.", e.getCause());
+        } catch (InterruptedException e) {
+            found.set(true);
+            throw e;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        var result = winner.get();
+        var metrics = Metrics.getInstance();
+        metrics.getBlockMining().record(elapsed);
+        metrics.getHashesComputed().add(hashes.sum());
+        if (event.shouldCommit()) {
+            event.difficultyBits = difficultyBits;
+            event.transactions = block.getTransactions().size();
+            event.hashes = hashes.sum();
+            event.found = result != null;
+            event.commit();
+        }
+        if (result == null) return new MiningResult(false, 0, null, hashes.sum(), elapsed);
+
+        block.setProofOfWork(result.getNonce(), result.getHash());
+        return new MiningResult(true, result.getNonce(), result.getHash(), hashes.sum(), elapsed);
+    }
+
+    private void search(Block block, int difficultyBits, long firstNonce, long startEpoch, AtomicBoolean found,
+                        AtomicReference<MiningResult> winner, LongAdder hashes) {
+        // Each worker reuses its own hasher and output, so trying a nonce allocates nothing
+        var hasher = new Sha256();
+        var hash = new byte[Sha256.DIGEST_SIZE];
+        long tried = 0;
+        try {
+            for (long n = firstNonce; n < NONCE_SPACE && !found.get() && epoch.get() == startEpoch; n += workers) {
+                int nonce = (int) n;
+                block.hashHeader(nonce, hasher, hash);
+                tried++;
+                if (meetsDifficulty(hash, difficultyBits)) {
+                    // Only the first worker to find a nonce is kept
+                    if (found.compareAndSet(false, true)) {
+                        winner.set(new MiningResult(true, nonce, hash.clone(), 0, 0));
+                    }
+                    return;
+                }
+            }
+        } finally {
+            hashes.add(tried);
+        }
+    }
+
+    /**
+     * Check if the hash starts with at least difficultyBits zero bits
+     */
+    public static boolean meetsDifficulty(byte[] hash, int difficultyBits) {
+        int fullBytes = difficultyBits >>> 3;
+        for (int i = 0; i < fullBytes; i++) {
+            if (hash[i] != 0) return false;
+        }
+        int remainingBits = difficultyBits & 7;
+        if (remainingBits == 0) return true;
+        return (hash[fullBytes] & 0xFF) >>> (8 - remainingBits) == 0;
+    }
+
+    /**
+     * Stop the searches in progress and the ones started with an older epoch, mine() then returns a result not found.
+     * Called when the block being mined is stale (a new tip arrived), so the miner switches to the new template
+     * without waiting for the end of the nonce space.
+     */
+    public void abort() {
+        epoch.incrementAndGet();
+    }
+
+    /**
+     * To take before building the block to mine, then given to mine(block, difficultyBits, startEpoch)
+     */
+    public long getEpoch() {
+        return epoch.get();
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,49 @@
+package org.sharnalk;
+
+/**
+ * Result of a MiningEngine search : the nonce found (if any), the hash of the block
+ * and the statistics of the search.
+ */
+public class MiningResult {
+    private final boolean found;
+    private final int nonce;
+    private final byte[] hash;
+    private final long hashesTried;
+    private final long elapsedNanos;
+
+    public MiningResult(boolean found, int nonce, byte[] hash, long hashesTried, long elapsedNanos) {
+        this.found = found;
+        this.nonce = nonce;
+        this.hash = hash;
+        this.hashesTried = hashesTried;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public boolean isFound() {
+        return found;
+    }
+
+    public int getNonce() {
+        return nonce;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public long getHashesTried() {
+        return hashesTried;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Number of hashes computed per second by all the workers together
+     */
+    public double getHashesPerSecond() {
+        if (elapsedNanos == 0) return 0;
+        return hashesTried * 1_000_000_000.0 / elapsedNanos;
+    }
+}
@@ -0,0 +1,235 @@
+package org.sharnalk;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node driven by code instead of the console : submit transactions, mine, read balances and blocks.
+ * The Mempool, the chain and the mining are the same as in BlockChainExample, with no Scanner in the way,
+ * so tests and the LoadGenerator can call it from many threads.
+ *
+ * The blocks are mined from a BlockTemplateBuilder, which keeps the candidate up to date as the pool changes, instead
+ * of selecting the whole pool again for each block. The builder and the WalletFactory are told of each new block
+ * as ChainListeners, and the builder aborts the MiningEngine when the tip changes.
+ *
+ * submit() returns a future completed with the block the transaction goes in, it is how the time from submission
+ * to inclusion is measured. A transaction refused by the pool, or dropped when the block is assembled,
+ * completes its future exceptionally.
+ */
+public class Node implements Closeable {
+    private final int difficultyBits;
+    private final int maxTransactionsPerBlock;
+    private final Mempool mempool = new Mempool();
+    private final MiningEngine miningEngine = new MiningEngine();
+    private final BlockTemplateBuilder templateBuilder;
+    private final List<ChainListener> chainListeners = new CopyOnWriteArrayList<>();
+    private final List<Block> chain = new ArrayList<>(); // guarded by itself
+    private final ConcurrentHashMap<HashKey, Block> blocksByHash = new ConcurrentHashMap<>();
+    // Submitted transactions not in a block yet, and the ones of them already accepted by the mempool
+    private final ConcurrentHashMap<HashKey, CompletableFuture<Block>> pending = new ConcurrentHashMap<>();
+    private final Set<HashKey> admitted = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService miningScheduler;
+    private ScheduledFuture<?> miningTask;
+    private volatile RuntimeException lastMiningError;
+
+    /**
+     * @param difficultyBits Leading zero bits of the mined blocks, see MiningEngine.
+     * @param maxTransactionsPerBlock Maximum number of transactions taken from the mempool for one block.
+     */
+    public Node(int difficultyBits, int maxTransactionsPerBlock) {
+        this.difficultyBits = difficultyBits;
+        this.maxTransactionsPerBlock = maxTransactionsPerBlock;
+        this.templateBuilder = new BlockTemplateBuilder(mempool, Miner.getInstance().getGlobalUnspentOutputs(), null,
+                BlockTemplateBuilder.DEFAULT_MAX_BYTES, maxTransactionsPerBlock);
+        templateBuilder.addMiningEngine(miningEngine);
+        chainListeners.add(templateBuilder);
+        chainListeners.add(WalletFactory.getInstance());
+        this.miningScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "node-miner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Put a signed transaction in the mempool.
+     *
+     * @return Completed with the block including the transaction once it is mined.
+     */
+    public CompletableFuture<Block> submit(Transaction tx) {
+        var hash = new HashKey(tx.getTxId());
+        var inclusion = new CompletableFuture<Block>();
+        // Registered before the pool sees it, a block could be assembled right after add()
+        if (pending.putIfAbsent(hash, inclusion) != null) {
+            inclusion.completeExceptionally(new IllegalArgumentException("Transaction already submitted."));
+            return inclusion;
+        }
+        if (!mempool.add(tx)) {
+            pending.remove(hash);
+            inclusion.completeExceptionally(new IllegalArgumentException("Transaction refused by the mempool."));
+        } else {
+            admitted.add(hash);
+        }
+        return inclusion;
+    }
+
+    /**
+     * Take the template of the BlockTemplateBuilder, mine it and add it to the chain.
+     * The transactions of the template are verified as a batch first, the invalid ones leave the pool.
+     *
+     * @return The new block, null if there was no valid transaction to put in it.
+     */
+    public synchronized Block mineBlock() throws InterruptedException {
+        var miner = Miner.getInstance();
+        var template = templateBuilder.getTemplate().getBlock();
+        var candidates = template.getTransactions();
+        var verdicts = miner.verifyTransactions(candidates); // the valid ones are applied to the UTXO set
+        var block = template;
+        if (!verdicts.stream().allMatch(verdict -> verdict == TransactionVerdict.VALID)) {
+            // Usually they all are, otherwise the block is built again with the valid ones
+            var tip = getTip();
+            block = (tip == null) ? new Block() : new Block(tip.getBlockHashCode());
+        }
+        var included = new HashSet<HashKey>();
+        for (int i = 0; i < candidates.size(); i++) {
+            var tx = candidates.get(i);
+            if (verdicts.get(i) == TransactionVerdict.VALID) {
+                included.add(new HashKey(tx.getTxId()));
+                if (block != template) block.addTransaction(tx);
+            } else {
+                Metrics.getInstance().getTransactionsRejected().increment();
+            }
+            mempool.remove(tx);
+        }
+        failDropped(included);
+        if (block.getTransactions().isEmpty()) return null;
+
+        // The block is valid on the tip whatever happens meanwhile : only this node changes its chain, under this lock
+        MiningResult result;
+        do {
+            result = miningEngine.mine(block, difficultyBits);
+            if (!result.isFound() && result.getHashesTried() >= MiningEngine.NONCE_SPACE) {
+                throw new IllegalStateException("No nonce gives the difficulty for this block.");
+            }
+        } while (!result.isFound());
+        var event = new BlockConnectedEvent();
+        event.begin();
+        long start = System.nanoTime();
+        int height;
+        synchronized (chain) {
+            height = chain.size();
+            chain.add(block);
+        }
+        blocksByHash.put(new HashKey(block.getBlockHashCode()), block);
+        for (var listener : chainListeners) {
+            listener.blockConnected(block, height);
+        }
+        BlockConnectedEvent.record(event, start, height, block, true);
+        for (var hash : included) {
+            admitted.remove(hash);
+            var inclusion = pending.remove(hash);
+            if (inclusion != null) inclusion.complete(block);
+        }
+        return block;
+    }
+
+    /**
+     * The candidates refused during the assembly have left the pool without being in the block.
+     * Only the admitted transactions are looked at : one still being verified by the mempool is not in it yet.
+     */
+    private void failDropped(HashSet<HashKey> included) {
+        for (var hash : admitted) {
+            if (included.contains(hash) || mempool.contains(hash.getBytes())) continue;
+            admitted.remove(hash);
+            var inclusion = pending.remove(hash);
+            if (inclusion != null) {
+                inclusion.completeExceptionally(new IllegalStateException("Transaction not valid when the block was assembled."));
+            }
+        }
+    }
+
+    /**
+     * Mine a block in the background every intervalMillis, when the mempool is not empty.
+     * A round failing with an exception is counted in Metrics and kept (getLastMiningError), the next rounds go on.
+     */
+    public synchronized void startMining(long intervalMillis) {
+        if (miningTask != null) return;
+        miningTask = miningScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                if (mempool.size() > 0) mineBlock();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                // Thrown out of the task it would cancel the schedule for good, without a trace
+                lastMiningError = e;
+                Metrics.getInstance().getMiningFailures().increment();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopMining() {
+        if (miningTask == null) return;
+        miningTask.cancel(false);
+        miningTask = null;
+    }
+
+    /**
+     * The last exception of the background mining, null if there was none
+     */
+    public RuntimeException getLastMiningError() {
+        return lastMiningError;
+    }
+
+    public long getBalance(Address address) {
+        return WalletFactory.getInstance().getBalance(address);
+    }
+
+    public int getHeight() {
+        synchronized (chain) {
+            return chain.size();
+        }
+    }
+
+    public Block getBlock(int height) {
+        synchronized (chain) {
+            return chain.get(height);
+        }
+    }
+
+    /**
+     * The block with this hash, null if it is not in the chain
+     */
+    public Block getBlock(byte[] blockHash) {
+        return blocksByHash.get(new HashKey(blockHash));
+    }
+
+    /**
+     * The last block of the chain, null if the chain is empty
+     */
+    public Block getTip() {
+        synchronized (chain) {
+            return chain.isEmpty() ? null : chain.get(chain.size() - 1);
+        }
+    }
+
+    public int getMempoolSize() {
+        return mempool.size();
+    }
+
+    @Override
+    public void close() {
+        stopMining();
+        miningScheduler.shutdownNow();
+        miningEngine.shutdown();
+    }
+}
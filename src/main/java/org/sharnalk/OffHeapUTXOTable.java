@@ -0,0 +1,484 @@
+package org.sharnalk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * UTXO table out of the Java heap, for sets too big for UTXOSet (a UTXO object with its PublicKey, byte[] and
+ * HashMap entry costs hundreds of bytes of heap, and the GC has to walk all of them).
+ * Each UTXO is a fixed-width record of 72 bytes in a ByteBuffer : outpoint, amount and key hash, like the
+ * binary form of a UTXO (see BinaryCodec) the public key is not kept.
+ *
+ * The records are in an open addressing hash table (linear probing, deletion by backward shift so there are no
+ * tombstones). A ByteBuffer holds at most 2 GB, the table is split in segments, each one with its own buffer
+ * and its own lock, like the stripes of UTXOSet. The capacity is fixed when the table is created, so the memory
+ * used is known up front (getMemoryBytes()) : expectedUtxos / 0.75 slots of 72 bytes, rounded up to a power of two,
+ * so between 96 and 192 bytes per expected UTXO. 100 million UTXOs need 2^27 slots, 9.7 GB of direct or mapped
+ * memory, and 70 million the same.
+ * With map() the segments are mapped from a file : the OS pages them in and out, the table can be bigger
+ * than the RAM and is still there when the file is opened again after close().
+ * It is not crash safe : the OS writes the pages back in any order, after a crash in the middle of updates the file
+ * may hold half written records. There is no journal nor checksum to detect it, such a file has to be deleted and
+ * the table rebuilt from the blocks.
+ *
+ * Record : state (1) | txId length (1) | unused (2) | hash (4) | amount (8) | output index (4) | txId (32) | key hash (20)
+ */
+public class OffHeapUTXOTable implements Closeable {
+    public static final int RECORD_SIZE = 72;
+    public static final int MAX_TXID_SIZE = 32;
+
+    private static final int STATE = 0;
+    private static final int TXID_LENGTH = 1;
+    private static final int HASH = 4;
+    private static final int AMOUNT = 8;
+    private static final int INDEX = 16;
+    private static final int TXID = 20;
+    private static final int KEY_HASH = TXID + MAX_TXID_SIZE;
+
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+
+    private static final double LOAD_FACTOR = 0.75;
+    private static final int MAX_SLOTS_PER_SEGMENT = 1 << 24; // 1.2 GB, under the 2 GB of a ByteBuffer
+    private static final int MIN_SEGMENTS = 16;
+
+    private static final class Segment {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final ByteBuffer records;
+        final int mask;
+        final int limit; // past it the probes get too long, the segment is full
+        int used;
+
+        Segment(ByteBuffer records, int slots) {
+            this.records = records;
+            this.mask = slots - 1;
+            this.limit = slots - slots / 8;
+        }
+    }
+
+    private final Segment[] segments;
+    private final int slotsPerSegment;
+    private final AtomicLong size = new AtomicLong();
+    private final FileChannel channel; // null when the table is not mapped from a file
+
+    private OffHeapUTXOTable(long expectedUtxos, Path file) throws IOException {
+        if (expectedUtxos <= 0) throw new IllegalArgumentException("Expected UTXO count must be positive.");
+        long slots = Long.highestOneBit((long) Math.ceil(expectedUtxos / LOAD_FACTOR) - 1) << 1;
+        int segmentCount = (int) Math.max(Math.min(MIN_SEGMENTS, slots / 1024), slots / MAX_SLOTS_PER_SEGMENT);
+        segmentCount = Math.max(1, segmentCount);
+        this.slotsPerSegment = (int) Math.max(1024, slots / segmentCount);
+        this.segments = new Segment[segmentCount];
+        long segmentBytes = (long) slotsPerSegment * RECORD_SIZE;
+
+        if (file == null) {
+            this.channel = null;
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = new Segment(ByteBuffer.allocateDirect((int) segmentBytes), slotsPerSegment);
+            }
+            return;
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long fileSize = segmentBytes * segmentCount;
+            long existing = channel.size();
+            if (existing != 0 && existing != fileSize) {
+                throw new IllegalArgumentException("The table file " + file + " was created for another capacity.");
+            }
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = new Segment(channel.map(FileChannel.MapMode.READ_WRITE, i * segmentBytes, segmentBytes), slotsPerSegment);
+            }
+            if (existing != 0) countRecords();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A table in direct memory, freed when the table is garbage collected
+     */
+    public static OffHeapUTXOTable allocate(long expectedUtxos) {
+        try {
+            return new OffHeapUTXOTable(expectedUtxos, null);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // no file involved
+        }
+    }
+
+    /**
+     * A table mapped from a file, created if it doesn't exist. An existing file must have been created
+     * with the same expectedUtxos, its UTXOs are loaded back as they were at the last close() or force().
+     * The file of a process which crashed is not checked, see the class comment.
+     */
+    public static OffHeapUTXOTable map(Path file, long expectedUtxos) throws IOException {
+        return new OffHeapUTXOTable(expectedUtxos, file);
+    }
+
+    private void countRecords() {
+        long total = 0;
+        for (var segment : segments) {
+            for (int slot = 0; slot < slotsPerSegment; slot++) {
+                if (segment.records.get(slot * RECORD_SIZE + STATE) == USED) segment.used++;
+            }
+            total += segment.used;
+        }
+        size.set(total);
+    }
+
+    /**
+     * 64 bits hash of the outpoint. The txIds are hashes or random, mixing them 8 bytes at a time is enough.
+     */
+    private static long hash(byte[] txId, int index) {
+        long h = txId.length * 0x9E3779B97F4A7C15L + index;
+        for (int i = 0; i < txId.length; i++) {
+            h = h * 31 + txId[i];
+            if ((i & 7) == 7) h = mix(h);
+        }
+        return mix(h);
+    }
+
+    // Finalizer of MurmurHash3, every input bit changes half of the output bits
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[segmentIndex(hash)];
+    }
+
+    // The high bits choose the segment, the low ones the slot in it
+    private int segmentIndex(long hash) {
+        return (int) (hash >>> 40) & (segments.length - 1);
+    }
+
+    /**
+     * Offset of the record of this outpoint in the segment, or -1 - offset of the empty slot ending its probe
+     */
+    private static int find(Segment segment, long hash, byte[] txId, int index) {
+        var records = segment.records;
+        int slot = (int) hash & segment.mask;
+        while (true) {
+            int offset = slot * RECORD_SIZE;
+            if (records.get(offset + STATE) == EMPTY) return -1 - offset;
+            if (records.getInt(offset + HASH) == (int) hash && records.getInt(offset + INDEX) == index
+                    && sameTxId(records, offset, txId)) {
+                return offset;
+            }
+            slot = (slot + 1) & segment.mask;
+        }
+    }
+
+    private static boolean sameTxId(ByteBuffer records, int offset, byte[] txId) {
+        if (records.get(offset + TXID_LENGTH) != txId.length) return false;
+        for (int i = 0; i < txId.length; i++) {
+            if (records.get(offset + TXID + i) != txId[i]) return false;
+        }
+        return true;
+    }
+
+    private static void write(ByteBuffer records, int offset, long hash, UTXO utxo) {
+        var txId = utxo.getTxId();
+        records.put(offset + TXID_LENGTH, (byte) txId.length);
+        records.putInt(offset + HASH, (int) hash);
+        records.putLong(offset + AMOUNT, utxo.getAmount());
+        records.putInt(offset + INDEX, utxo.getOutputIndex());
+        records.put(offset + TXID, txId);
+        records.put(offset + KEY_HASH, utxo.getKeyHash());
+        records.put(offset + STATE, USED);
+    }
+
+    /**
+     * Empty the slot, then move back the records of the probe that follows it so no search stops too early
+     */
+    private static void delete(Segment segment, int offset) {
+        var records = segment.records;
+        int hole = offset / RECORD_SIZE;
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & segment.mask;
+            int from = slot * RECORD_SIZE;
+            if (records.get(from + STATE) == EMPTY) break;
+            int home = records.getInt(from + HASH) & segment.mask;
+            // The record can fill the hole if its home slot is not between the hole and itself (cyclically)
+            if (((slot - home) & segment.mask) >= ((slot - hole) & segment.mask)) {
+                records.put(hole * RECORD_SIZE, records.slice(from, RECORD_SIZE), 0, RECORD_SIZE);
+                hole = slot;
+            }
+        }
+        int to = hole * RECORD_SIZE;
+        records.put(to, new byte[RECORD_SIZE]);
+        segment.used--;
+    }
+
+    private static long hash(OutPoint outPoint) {
+        return hash(outPoint.getTxId(), outPoint.getIndex());
+    }
+
+    private static void checkTxId(byte[] txId) {
+        if (txId == null || txId.length > MAX_TXID_SIZE) {
+            throw new IllegalArgumentException("A txId of at most " + MAX_TXID_SIZE + " bytes is needed.");
+        }
+    }
+
+    /**
+     * @return false if the UTXO is already in the table.
+     * @throws IllegalStateException If its segment is full, the table was created too small.
+     */
+    public boolean add(UTXO utxo) {
+        checkTxId(utxo.getTxId());
+        long hash = hash(utxo.getTxId(), utxo.getOutputIndex());
+        var segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int offset = find(segment, hash, utxo.getTxId(), utxo.getOutputIndex());
+            if (offset >= 0) return false;
+            if (segment.used == segment.limit) throw new IllegalStateException("The UTXO table is full.");
+            write(segment.records, -1 - offset, hash, utxo);
+            segment.used++;
+            size.incrementAndGet();
+            return true;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(OutPoint outPoint) {
+        return getAmount(outPoint) >= 0;
+    }
+
+    /**
+     * @return The amount of the UTXO, -1 if it is not in the table.
+     */
+    public long getAmount(OutPoint outPoint) {
+        if (outPoint.getTxId().length > MAX_TXID_SIZE) return -1;
+        long hash = hash(outPoint);
+        var segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            int offset = find(segment, hash, outPoint.getTxId(), outPoint.getIndex());
+            return offset < 0 ? -1 : segment.records.getLong(offset + AMOUNT);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The key hash of the owner of the UTXO, null if it is not in the table.
+     */
+    public byte[] getKeyHash(OutPoint outPoint) {
+        if (outPoint.getTxId().length > MAX_TXID_SIZE) return null;
+        long hash = hash(outPoint);
+        var segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            int offset = find(segment, hash, outPoint.getTxId(), outPoint.getIndex());
+            if (offset < 0) return null;
+            var keyHash = new byte[Hashing.KEY_HASH_SIZE];
+            segment.records.get(offset + KEY_HASH, keyHash);
+            return keyHash;
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuild the UTXO object, its owner is only known by its key hash.
+     *
+     * @return null if the UTXO is not in the table.
+     */
+    public UTXO get(OutPoint outPoint) {
+        if (outPoint.getTxId().length > MAX_TXID_SIZE) return null;
+        long hash = hash(outPoint);
+        var segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            int offset = find(segment, hash, outPoint.getTxId(), outPoint.getIndex());
+            return offset < 0 ? null : read(segment.records, offset, outPoint);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    private static UTXO read(ByteBuffer records, int offset, OutPoint outPoint) {
+        var keyHash = new byte[Hashing.KEY_HASH_SIZE];
+        records.get(offset + KEY_HASH, keyHash);
+        var utxo = new UTXO(records.getLong(offset + AMOUNT), keyHash);
+        utxo.setTxId(outPoint.getTxId().clone());
+        utxo.setOutputIndex(outPoint.getIndex());
+        return utxo;
+    }
+
+    /**
+     * @return true if the UTXO was in the table.
+     */
+    public boolean remove(OutPoint outPoint) {
+        if (outPoint.getTxId().length > MAX_TXID_SIZE) return false;
+        long hash = hash(outPoint);
+        var segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int offset = find(segment, hash, outPoint.getTxId(), outPoint.getIndex());
+            if (offset < 0) return false;
+            delete(segment, offset);
+            size.decrementAndGet();
+            return true;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Same as UTXOSet.spend(List, List) : spend all the inputs and add all the outputs, or do nothing if one input
+     * is not in the table, if an input doesn't say the same amount and owner as the record, if the outputs hold more
+     * than the inputs, or if an output is already in the table. The segments are locked in ascending order.
+     *
+     * @return The UTXOs removed from the table, in the order of the inputs (rebuilt from the records, see get()),
+     * null if the transaction has not been applied.
+     * @throws IllegalStateException If the segment of an output is full, nothing is changed then.
+     */
+    public List<UTXO> spend(List<UTXO> inputs, List<UTXO> outputs) {
+        if (inputs.isEmpty()) return null;
+        long outputTotal = 0;
+        try {
+            for (var output : outputs) {
+                checkTxId(output.getTxId());
+                outputTotal = Amount.add(outputTotal, output.getAmount());
+            }
+        } catch (ArithmeticException e) {
+            return null;
+        }
+        var inputPoints = new ArrayList<OutPoint>(inputs.size());
+        for (var input : inputs) {
+            if (input.getTxId() == null || input.getTxId().length > MAX_TXID_SIZE) return null;
+            inputPoints.add(input.getOutPoint());
+        }
+        var spentPoints = new HashSet<>(inputPoints);
+        if (spentPoints.size() != inputPoints.size()) return null;
+        var outputPoints = new HashSet<OutPoint>();
+        for (var output : outputs) {
+            if (!outputPoints.add(output.getOutPoint())) return null;
+        }
+
+        long[] inputHashes = new long[inputs.size()];
+        long[] outputHashes = new long[outputs.size()];
+        int[] locked = new int[inputHashes.length + outputHashes.length];
+        for (int i = 0; i < inputHashes.length; i++) {
+            inputHashes[i] = hash(inputPoints.get(i));
+            locked[i] = segmentIndex(inputHashes[i]);
+        }
+        for (int i = 0; i < outputHashes.length; i++) {
+            outputHashes[i] = hash(outputs.get(i).getTxId(), outputs.get(i).getOutputIndex());
+            locked[inputHashes.length + i] = segmentIndex(outputHashes[i]);
+        }
+        locked = Arrays.stream(locked).sorted().distinct().toArray();
+        for (int index : locked) {
+            segments[index].lock.writeLock().lock();
+        }
+        try {
+            long inputTotal = 0;
+            var spent = new ArrayList<UTXO>(inputs.size());
+            for (int i = 0; i < inputHashes.length; i++) {
+                var segment = segmentFor(inputHashes[i]);
+                var outPoint = inputPoints.get(i);
+                int offset = find(segment, inputHashes[i], outPoint.getTxId(), outPoint.getIndex());
+                if (offset < 0) return null;
+                var stored = read(segment.records, offset, outPoint);
+                if (!UTXOSet.sameOutput(stored, inputs.get(i))) return null;
+                long amount = stored.getAmount();
+                inputTotal = (inputTotal > Long.MAX_VALUE - amount) ? Long.MAX_VALUE : inputTotal + amount;
+                spent.add(stored);
+            }
+            if (outputTotal > inputTotal) return null;
+            for (int i = 0; i < outputHashes.length; i++) {
+                var output = outputs.get(i);
+                if (spentPoints.contains(output.getOutPoint())) continue;
+                // Already unspent, it would be lost
+                if (find(segmentFor(outputHashes[i]), outputHashes[i], output.getTxId(), output.getOutputIndex()) >= 0) return null;
+            }
+            // Checked before anything changes, ignoring the inputs freeing room : the spend is all or nothing
+            int[] added = new int[segments.length];
+            for (long hash : outputHashes) {
+                var index = segmentIndex(hash);
+                if (segments[index].used + ++added[index] > segments[index].limit) {
+                    throw new IllegalStateException("The UTXO table is full.");
+                }
+            }
+
+            for (int i = 0; i < inputHashes.length; i++) {
+                var segment = segmentFor(inputHashes[i]);
+                var outPoint = inputPoints.get(i);
+                // The offsets found above move when a deletion shifts the records, look again
+                delete(segment, find(segment, inputHashes[i], outPoint.getTxId(), outPoint.getIndex()));
+            }
+            for (int i = 0; i < outputHashes.length; i++) {
+                var output = outputs.get(i);
+                var segment = segmentFor(outputHashes[i]);
+                int offset = find(segment, outputHashes[i], output.getTxId(), output.getOutputIndex());
+                write(segment.records, -1 - offset, outputHashes[i], output);
+                segment.used++;
+            }
+            size.addAndGet(outputHashes.length - inputHashes.length);
+            return spent;
+        } finally {
+            for (int i = locked.length - 1; i >= 0; i--) {
+                segments[locked[i]].lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Number of UTXOs the table is sized for, it holds a bit more before a segment is full
+     */
+    public long getCapacity() {
+        return (long) (segments.length * (long) slotsPerSegment * LOAD_FACTOR);
+    }
+
+    /**
+     * Direct or mapped memory taken by the records, it doesn't change with the number of UTXOs
+     */
+    public long getMemoryBytes() {
+        return (long) segments.length * slotsPerSegment * RECORD_SIZE;
+    }
+
+    /**
+     * Write the mapped segments to the file, nothing to do for a table in direct memory.
+     * The table must not be changed meanwhile, otherwise the file holds a mix of before and after.
+     */
+    public void force() {
+        if (channel == null) return;
+        for (var segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                ((MappedByteBuffer) segment.records).force();
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel == null) return;
+        force();
+        channel.close();
+    }
+}
@@ -0,0 +1,41 @@
+package org.sharnalk;
+
+import java.util.Arrays;
+
+/**
+ * Reference to one output of a transaction : the txId of the transaction and the index of the output in it.
+ * It identifies a UTXO, two OutPoint with the same bytes are equal (unlike the byte[] themselves).
+ */
+public final class OutPoint {
+    private final byte[] txId;
+    private final int index;
+    private final int hash; // computed once, the txId can be long
+
+    public OutPoint(byte[] txId, int index) {
+        if (txId == null) throw new IllegalArgumentException("An OutPoint needs a txId.");
+        this.txId = txId;
+        this.index = index;
+        this.hash = 31 * Arrays.hashCode(txId) + index;
+    }
+
+    public byte[] getTxId() {
+        return txId;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof OutPoint)) return false;
+        var other = (OutPoint) o;
+        return hash == other.hash && index == other.index && Arrays.equals(txId, other.txId);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
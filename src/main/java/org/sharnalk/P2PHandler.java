@@ -0,0 +1,28 @@
+package org.sharnalk;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * What a P2PNode does with the transactions and blocks sent by its peers, typically add them to the Mempool / BlockTree.
+ * Called on the worker threads of the node, several calls can run at the same time.
+ */
+public interface P2PHandler {
+    /**
+     * @return true if the transaction is new and valid, it is then announced to the other peers.
+     */
+    boolean onTransaction(Transaction tx);
+
+    /**
+     * @return true if the block is new and valid, it is then announced to the other peers.
+     */
+    boolean onBlock(Block block);
+
+    /**
+     * The transactions a received CompactBlock is rebuilt from, usually Mempool.getTransactions().
+     * Without them every transaction of the block is asked to the peer.
+     */
+    default Collection<Transaction> getMempoolTransactions() {
+        return List.of();
+    }
+}
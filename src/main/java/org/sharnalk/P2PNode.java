@@ -0,0 +1,705 @@
+package org.sharnalk;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gossip between nodes over TCP, with non blocking NIO : one selector thread does all the network I/O of the node,
+ * the transactions and blocks received are decoded and given to the P2PHandler on a pool of workers.
+ *
+ * Message : type (1) | payload length (4) | payload
+ *  INV     : the sender has new items           count (varint) | count * (type (1) | hash (32))
+ *  GETDATA : the sender wants these items       same as INV
+ *  TX      : a transaction                      BinaryCodec
+ *  BLOCK   : a block                            BinaryCodec
+ *  CMPCTBLOCK  : a block as header and short IDs  BinaryCodec, see CompactBlock
+ *  GETBLOCKTXN : the transactions missing to rebuild a compact block   blockHash (32) | count (varint) | indexes (varint)
+ *  BLOCKTXN    : the answer                       blockHash (32) | count (varint) | transactions (BinaryCodec)
+ * A new item is only announced (INV), the peers which don't have it yet ask for it (GETDATA). The node remembers
+ * which items each peer knows, so an item crosses each link once, and it asks one peer at a time for an item.
+ * A request not answered within REQUEST_TIMEOUT_MILLIS goes to the next peer which announced the item, and is
+ * forgotten when there is none left. An item refused by the handler (for example a transaction whose parent is
+ * not known yet) is ignored for REFUSED_MILLIS only, then it can be asked again.
+ * A block asked with GETDATA is sent as a CompactBlock : the peer rebuilds it from its mempool and only asks for
+ * the transactions it doesn't have.
+ *
+ * Backpressure : the messages waiting to be written to a peer are counted. Above MAX_QUEUED_BYTES the node stops
+ * reading from that peer and stops announcing to it, until the peer has read half of it.
+ * All the state of the peers is only touched by the selector thread, the other threads post tasks to it.
+ */
+public class P2PNode implements Closeable {
+    static final byte INV = 1;
+    static final byte GETDATA = 2;
+    static final byte TX = 3;
+    static final byte BLOCK = 4;
+    static final byte CMPCTBLOCK = 5;
+    static final byte GETBLOCKTXN = 6;
+    static final byte BLOCKTXN = 7;
+
+    private static final int HEADER_SIZE = 5;
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024; // grown for a bigger message, then back to this size
+    private static final int INVENTORY_ENTRY_SIZE = 1 + Sha256.DIGEST_SIZE;
+    private static final int MAX_MESSAGE_SIZE = 32 * 1024 * 1024;
+    private static final int MAX_INVENTORY_PER_MESSAGE = 1_000;
+    private static final long MAX_QUEUED_BYTES = 4L * 1024 * 1024;
+    // How many hashes are remembered, the oldest are forgotten first
+    private static final int MAX_SEEN = 100_000;
+    private static final int MAX_KNOWN_PER_PEER = 20_000;
+    // Items kept encoded to answer GETDATA
+    private static final int MAX_RELAYED = 10_000;
+    // Compact blocks waiting for their missing transactions
+    private static final int MAX_PENDING_BLOCKS = 64;
+    static final long REQUEST_TIMEOUT_MILLIS = 5_000;
+    static final long REFUSED_MILLIS = 60_000;
+
+    private static final class Item {
+        final byte type;
+        final byte[] payload; // what GETDATA gets : the encoded transaction, or the encoded CompactBlock of the block
+        final Block block;
+
+        Item(byte type, byte[] payload, Block block) {
+            this.type = type;
+            this.payload = payload;
+            this.block = block;
+        }
+
+        // Encoded once, out of the selector thread, and sent to every peer asking for it
+        static Item ofBlock(Block block) {
+            return new Item(BLOCK, BinaryCodec.encode(CompactBlock.of(block)), block);
+        }
+    }
+
+    // An item asked to one peer, with the other peers which announced it in case that one doesn't answer
+    private static final class Request {
+        final byte[] entry;
+        Peer peer;
+        long deadline; // System.nanoTime()
+        final ArrayDeque<Peer> otherAnnouncers = new ArrayDeque<>();
+
+        Request(byte[] entry) {
+            this.entry = entry;
+        }
+    }
+
+    private static final class Peer {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long queuedBytes;
+        boolean paused; // too much to write, not reading until it goes down
+        final Set<HashKey> known = boundedSet(MAX_KNOWN_PER_PEER);
+        final ArrayDeque<byte[]> pendingInventory = new ArrayDeque<>(); // entries not announced yet
+
+        Peer(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final P2PHandler handler;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<Peer> peers = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel server;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    // Selector thread only
+    private final Set<HashKey> seen = boundedSet(MAX_SEEN);
+    private final Map<HashKey, Request> requested = boundedMap(MAX_SEEN);
+    private final Map<HashKey, Long> refused = boundedMap(MAX_SEEN); // hash -> end of the refusal, System.nanoTime()
+    private final Map<HashKey, Item> relayed = boundedMap(MAX_RELAYED);
+    // Worker threads
+    private final ConcurrentHashMap<HashKey, PartialBlock> pendingBlocks = new ConcurrentHashMap<>();
+
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder blockTransactionsRequested = new LongAdder();
+
+    /**
+     * @param handler Receives the transactions and blocks sent by the peers.
+     */
+    public P2PNode(P2PHandler handler) throws IOException {
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            var thread = new Thread(runnable, "p2p-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Listen on a free port of the loopback interface, see getPort()
+     */
+    public void start() throws IOException {
+        start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (running) throw new IllegalStateException("Node already started.");
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(this::run, "p2p-selector-" + getPort());
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Open a connection to another node, in the background
+     */
+    public void connect(InetSocketAddress address) {
+        post(() -> {
+            try {
+                var channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                var peer = new Peer(channel);
+                if (channel.connect(address)) {
+                    register(peer);
+                } else {
+                    peer.key = channel.register(selector, SelectionKey.OP_CONNECT, peer);
+                }
+            } catch (IOException e) {
+                // The node is not reachable, nothing to clean up
+            }
+        });
+    }
+
+    /**
+     * Announce a transaction of this node (submitted locally or accepted from elsewhere) to all the peers
+     */
+    public void announce(Transaction tx) {
+        var payload = new byte[BinaryCodec.encodedSize(tx)];
+        BinaryCodec.encode(tx, ByteBuffer.wrap(payload));
+        var hash = new HashKey(tx.getTxId());
+        var item = new Item(TX, payload, null);
+        post(() -> relay(hash, item));
+    }
+
+    /**
+     * Announce a block of this node, mined here or accepted from elsewhere. It is sent as a CompactBlock.
+     */
+    public void announce(Block block) {
+        var hash = new HashKey(block.getBlockHashCode());
+        var item = Item.ofBlock(block);
+        post(() -> relay(hash, item));
+    }
+
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Number of transactions asked to the peers because they were not in the mempool when a compact block came
+     */
+    public long getBlockTransactionsRequested() {
+        return blockTransactionsRequested.sum();
+    }
+
+    private void post(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    // ---- Selector thread
+
+    private void run() {
+        while (running) {
+            try {
+                // Woken up from time to time while requests are waiting, to send again the ones not answered
+                selector.select(requested.isEmpty() ? 0 : REQUEST_TIMEOUT_MILLIS / 4);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                var selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    var key = selected.next();
+                    selected.remove();
+                    if (key.isValid()) handleKey(key);
+                }
+                expireRequests();
+                for (var peer : peers) {
+                    flushInventory(peer);
+                }
+            } catch (IOException e) {
+                break; // the selector itself is broken
+            }
+        }
+        for (var peer : new ArrayList<>(peers)) {
+            disconnect(peer);
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (key.isAcceptable()) {
+            try {
+                var channel = server.accept();
+                if (channel != null) {
+                    channel.configureBlocking(false);
+                    register(new Peer(channel));
+                }
+            } catch (IOException e) {
+                // Only this connection failed
+            }
+            return;
+        }
+        var peer = (Peer) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                peer.channel.finishConnect();
+                register(peer);
+            }
+            if (key.isValid() && key.isReadable()) read(peer);
+            if (key.isValid() && key.isWritable()) write(peer);
+        } catch (IOException | RuntimeException e) {
+            disconnect(peer); // closed by the other side, or sent something malformed
+        }
+    }
+
+    private void register(Peer peer) throws IOException {
+        peer.channel.socket().setTcpNoDelay(true);
+        if (peer.key == null) {
+            peer.key = peer.channel.register(selector, SelectionKey.OP_READ, peer);
+        }
+        peers.add(peer);
+        updateInterest(peer);
+        // Tell the new peer about what we have
+        for (var entry : relayed.entrySet()) {
+            if (peer.known.add(entry.getKey())) peer.pendingInventory.add(inventoryEntry(entry.getValue().type, entry.getKey()));
+        }
+    }
+
+    private void disconnect(Peer peer) {
+        peers.remove(peer);
+        if (peer.key != null) peer.key.cancel();
+        try {
+            peer.channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private void read(Peer peer) throws IOException {
+        int count = peer.channel.read(peer.in);
+        if (count < 0) throw new EOFException("Connection closed by the peer.");
+        bytesReceived.add(count);
+        peer.in.flip();
+        while (peer.in.remaining() >= HEADER_SIZE) {
+            int start = peer.in.position();
+            int length = peer.in.getInt(start + 1);
+            if (length < 0 || length > MAX_MESSAGE_SIZE) throw new IOException("Invalid message length " + length);
+            if (peer.in.remaining() < HEADER_SIZE + length) {
+                if (HEADER_SIZE + length > peer.in.capacity()) {
+                    // The buffer is too small for this message, the rest of it will be read in a bigger one
+                    var bigger = ByteBuffer.allocate(HEADER_SIZE + length);
+                    bigger.put(peer.in);
+                    peer.in = bigger;
+                    return;
+                }
+                break;
+            }
+            byte type = peer.in.get(start);
+            var payload = new byte[length];
+            peer.in.position(start + HEADER_SIZE);
+            peer.in.get(payload);
+            messagesReceived.increment();
+            handleMessage(peer, type, payload);
+        }
+        peer.in.compact();
+        if (peer.in.capacity() > INPUT_BUFFER_SIZE && peer.in.position() <= INPUT_BUFFER_SIZE) {
+            // The big message is consumed, a peer must not keep up to MAX_MESSAGE_SIZE of memory for nothing
+            var smaller = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+            smaller.put(peer.in.flip());
+            peer.in = smaller;
+        }
+    }
+
+    private void handleMessage(Peer peer, byte type, byte[] payload) {
+        switch (type) {
+            case INV:
+                List<byte[]> wanted = new ArrayList<>();
+                for (var entry : readInventory(payload)) {
+                    var hash = inventoryHash(entry);
+                    peer.known.add(hash);
+                    if (isKnown(hash)) continue;
+                    var request = requested.get(hash);
+                    if (request != null) {
+                        // Already asked to another peer, this one is the next to ask if it doesn't answer
+                        if (request.peer != peer) request.otherAnnouncers.add(peer);
+                        continue;
+                    }
+                    request = new Request(entry);
+                    ask(request, peer);
+                    requested.put(hash, request);
+                    wanted.add(entry);
+                }
+                if (!wanted.isEmpty()) send(peer, GETDATA, writeInventory(wanted));
+                break;
+            case GETDATA:
+                for (var entry : readInventory(payload)) {
+                    var item = relayed.get(inventoryHash(entry));
+                    if (item == null) continue;
+                    send(peer, item.type == BLOCK ? CMPCTBLOCK : item.type, item.payload);
+                }
+                break;
+            case TX:
+            case BLOCK:
+                workers.execute(() -> receive(peer, type, payload));
+                break;
+            case CMPCTBLOCK:
+                var compactBlock = BinaryCodec.decodeCompactBlock(ByteBuffer.wrap(payload));
+                var blockHash = new HashKey(compactBlock.getBlockHash());
+                peer.known.add(blockHash);
+                if (isKnown(blockHash) || pendingBlocks.containsKey(blockHash)) break;
+                workers.execute(() -> receiveCompactBlock(peer, blockHash, compactBlock));
+                break;
+            case GETBLOCKTXN:
+                var request = ByteBuffer.wrap(payload);
+                var requestedBlock = relayed.get(new HashKey(readHash(request)));
+                if (requestedBlock == null || requestedBlock.block == null) break;
+                var indexes = new int[readCount(request, 1)];
+                for (int i = 0; i < indexes.length; i++) {
+                    indexes[i] = BinaryCodec.readVarint(request);
+                }
+                send(peer, BLOCKTXN, writeBlockTransactions(requestedBlock.block, indexes));
+                break;
+            case BLOCKTXN:
+                workers.execute(() -> receiveBlockTransactions(peer, payload));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown message type " + type);
+        }
+    }
+
+    // Worker thread : decoding and validation are the slow part, they don't hold the selector
+    private void receive(Peer peer, byte type, byte[] payload) {
+        try {
+            if (type == TX) {
+                var tx = BinaryCodec.decodeTransaction(ByteBuffer.wrap(payload));
+                boolean accepted = handler.onTransaction(tx);
+                received(peer, new HashKey(tx.getTxId()), accepted ? new Item(TX, payload, null) : null);
+            } else {
+                var block = BinaryCodec.decodeBlock(ByteBuffer.wrap(payload));
+                boolean accepted = handler.onBlock(block);
+                received(peer, new HashKey(block.getBlockHashCode()), accepted ? Item.ofBlock(block) : null);
+            }
+        } catch (RuntimeException e) {
+            // Malformed, dropped
+        }
+    }
+
+    // Worker thread : rebuild the block from the mempool, or ask for what is missing
+    private void receiveCompactBlock(Peer peer, HashKey hash, CompactBlock compactBlock) {
+        try {
+            var partial = new PartialBlock(compactBlock, handler.getMempoolTransactions());
+            if (partial.isComplete()) {
+                completeBlock(peer, hash, partial, true);
+            } else {
+                requestMissing(peer, hash, partial);
+            }
+        } catch (RuntimeException e) {
+            pendingBlocks.remove(hash);
+        }
+    }
+
+    private void requestMissing(Peer peer, HashKey hash, PartialBlock partial) {
+        if (pendingBlocks.size() >= MAX_PENDING_BLOCKS) return;
+        pendingBlocks.put(hash, partial);
+        var missing = partial.getMissingIndexes();
+        blockTransactionsRequested.add(missing.length);
+        var buffer = ByteBuffer.allocate(Sha256.DIGEST_SIZE + BinaryCodec.varintSize(missing.length) + missing.length * 5);
+        buffer.put(hash.getBytes());
+        BinaryCodec.writeVarint(missing.length, buffer);
+        for (int index : missing) {
+            BinaryCodec.writeVarint(index, buffer);
+        }
+        var payload = Arrays.copyOf(buffer.array(), buffer.position());
+        post(() -> send(peer, GETBLOCKTXN, payload));
+    }
+
+    // Worker thread : the missing transactions of a compact block
+    private void receiveBlockTransactions(Peer peer, byte[] payload) {
+        var buffer = ByteBuffer.wrap(payload);
+        var hash = new HashKey(readHash(buffer));
+        var partial = pendingBlocks.remove(hash);
+        if (partial == null) return;
+        try {
+            int count = readCount(buffer, 1);
+            List<Transaction> transactions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                transactions.add(BinaryCodec.decodeTransaction(buffer));
+            }
+            // After a collision all the transactions come from the peer, a second mismatch means a bad block
+            boolean retry = partial.getMissingIndexes().length < partial.getCompactBlock().getTransactionCount();
+            partial.fill(transactions);
+            completeBlock(peer, hash, partial, retry);
+        } catch (RuntimeException e) {
+            // Malformed, dropped
+        }
+    }
+
+    private void completeBlock(Peer peer, HashKey hash, PartialBlock partial, boolean retryOnMismatch) {
+        var block = partial.toBlock();
+        if (block == null) {
+            if (retryOnMismatch) {
+                // Short ID collision, a mempool transaction took the place of another one : ask for all of them
+                partial.clear();
+                requestMissing(peer, hash, partial);
+            } else {
+                received(peer, hash, null);
+            }
+            return;
+        }
+        boolean accepted = handler.onBlock(block);
+        received(peer, hash, accepted ? Item.ofBlock(block) : null);
+    }
+
+    /**
+     * Back on the selector thread once an item from a peer has been handled
+     *
+     * @param item The item to relay, null if it has been refused.
+     */
+    private void received(Peer peer, HashKey hash, Item item) {
+        post(() -> {
+            requested.remove(hash);
+            peer.known.add(hash);
+            if (item != null) {
+                relay(hash, item);
+            } else {
+                // Not for ever : it may become valid, a transaction whose parent comes later for example
+                refused.put(hash, System.nanoTime() + REFUSED_MILLIS * 1_000_000);
+            }
+        });
+    }
+
+    // Already have it, or refused it a short time ago
+    private boolean isKnown(HashKey hash) {
+        if (seen.contains(hash)) return true;
+        var until = refused.get(hash);
+        if (until == null) return false;
+        if (System.nanoTime() - until < 0) return true;
+        refused.remove(hash);
+        return false;
+    }
+
+    private static void ask(Request request, Peer peer) {
+        request.peer = peer;
+        request.deadline = System.nanoTime() + REQUEST_TIMEOUT_MILLIS * 1_000_000;
+    }
+
+    /**
+     * Ask the next announcer for the items not received in time, forget the ones nobody else announced
+     */
+    private void expireRequests() {
+        if (requested.isEmpty()) return;
+        long now = System.nanoTime();
+        var iterator = requested.values().iterator();
+        while (iterator.hasNext()) {
+            var request = iterator.next();
+            if (now - request.deadline < 0) continue;
+            Peer next;
+            do {
+                next = request.otherAnnouncers.poll();
+            } while (next != null && !peers.contains(next));
+            if (next == null) {
+                iterator.remove(); // the next INV for it starts again
+                continue;
+            }
+            ask(request, next);
+            send(next, GETDATA, writeInventory(List.of(request.entry)));
+        }
+    }
+
+    private void relay(HashKey hash, Item item) {
+        if (!seen.add(hash) && relayed.containsKey(hash)) return;
+        refused.remove(hash);
+        relayed.put(hash, item);
+        var entry = inventoryEntry(item.type, hash);
+        for (var peer : peers) {
+            if (peer.known.add(hash)) peer.pendingInventory.add(entry);
+        }
+    }
+
+    // The announcements are grouped, one INV carries up to MAX_INVENTORY_PER_MESSAGE items
+    private void flushInventory(Peer peer) {
+        while (!peer.pendingInventory.isEmpty() && !peer.paused) {
+            List<byte[]> entries = new ArrayList<>();
+            while (!peer.pendingInventory.isEmpty() && entries.size() < MAX_INVENTORY_PER_MESSAGE) {
+                entries.add(peer.pendingInventory.poll());
+            }
+            send(peer, INV, writeInventory(entries));
+        }
+    }
+
+    private void send(Peer peer, byte type, byte[] payload) {
+        var message = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        message.put(type).putInt(payload.length).put(payload).flip();
+        peer.out.add(message);
+        peer.queuedBytes += message.capacity();
+        messagesSent.increment();
+        updateInterest(peer);
+    }
+
+    private void write(Peer peer) throws IOException {
+        while (!peer.out.isEmpty()) {
+            var message = peer.out.peek();
+            bytesSent.add(peer.channel.write(message));
+            if (message.hasRemaining()) break; // the socket buffer is full
+            peer.out.poll();
+            peer.queuedBytes -= message.capacity();
+        }
+        updateInterest(peer);
+    }
+
+    private void updateInterest(Peer peer) {
+        if (peer.queuedBytes > MAX_QUEUED_BYTES) {
+            peer.paused = true;
+        } else if (peer.queuedBytes <= MAX_QUEUED_BYTES / 2) {
+            peer.paused = false;
+        }
+        if (peer.key == null || !peer.key.isValid() || !peers.contains(peer)) return;
+        int ops = (peer.paused ? 0 : SelectionKey.OP_READ) | (peer.out.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        peer.key.interestOps(ops);
+    }
+
+    private static byte[] writeBlockTransactions(Block block, int[] indexes) {
+        var transactions = PartialBlock.select(block, indexes);
+        int size = Sha256.DIGEST_SIZE + BinaryCodec.varintSize(transactions.size());
+        for (var tx : transactions) {
+            size += BinaryCodec.encodedSize(tx);
+        }
+        var buffer = ByteBuffer.allocate(size);
+        buffer.put(block.getBlockHashCode());
+        BinaryCodec.writeVarint(transactions.size(), buffer);
+        for (var tx : transactions) {
+            BinaryCodec.encode(tx, buffer);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] readHash(ByteBuffer buffer) {
+        var hash = new byte[Sha256.DIGEST_SIZE];
+        buffer.get(hash);
+        return hash;
+    }
+
+    // A count read from a peer, checked against what is left so a bad message can't make us allocate a huge array
+    private static int readCount(ByteBuffer buffer, int minimumEntrySize) {
+        int count = BinaryCodec.readVarint(buffer);
+        if (count < 0 || count > buffer.remaining() / minimumEntrySize) throw new IllegalArgumentException("Invalid count " + count);
+        return count;
+    }
+
+    // ---- Inventory
+
+    private static byte[] inventoryEntry(byte type, HashKey hash) {
+        var entry = new byte[INVENTORY_ENTRY_SIZE];
+        entry[0] = type;
+        System.arraycopy(hash.getBytes(), 0, entry, 1, Sha256.DIGEST_SIZE);
+        return entry;
+    }
+
+    private static HashKey inventoryHash(byte[] entry) {
+        var hash = new byte[Sha256.DIGEST_SIZE];
+        System.arraycopy(entry, 1, hash, 0, Sha256.DIGEST_SIZE);
+        return new HashKey(hash);
+    }
+
+    private static byte[] writeInventory(List<byte[]> entries) {
+        var buffer = ByteBuffer.allocate(BinaryCodec.varintSize(entries.size()) + entries.size() * INVENTORY_ENTRY_SIZE);
+        BinaryCodec.writeVarint(entries.size(), buffer);
+        for (var entry : entries) {
+            buffer.put(entry);
+        }
+        return buffer.array();
+    }
+
+    private static List<byte[]> readInventory(byte[] payload) {
+        var buffer = ByteBuffer.wrap(payload);
+        int count = readCount(buffer, INVENTORY_ENTRY_SIZE);
+        List<byte[]> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            var entry = new byte[INVENTORY_ENTRY_SIZE];
+            buffer.get(entry);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static <K, V> Map<K, V> boundedMap(int maxSize) {
+        return new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static <K> Set<K> boundedSet(int maxSize) {
+        return Collections.newSetFromMap(boundedMap(maxSize));
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        if (selectorThread != null) {
+            try {
+                selectorThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.shutdownNow();
+        if (server != null) server.close();
+        selector.close();
+    }
+}
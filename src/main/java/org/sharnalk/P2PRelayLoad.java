@@ -0,0 +1,94 @@
+package org.sharnalk;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Three P2PNodes on the loopback interface, connected in a ring, each one with its own Mempool.
+ * The first node gets the transactions and announces them, the time measured is until the two others
+ * have all of them in their pool.
+ *
+ * Run : java -cp target/classes org.sharnalk.P2PRelayLoad [transactions]
+ */
+public class P2PRelayLoad {
+    private static final int NODE_COUNT = 3;
+    private static final long TIMEOUT_MILLIS = 30_000;
+
+    public static void main(String[] args) throws Exception {
+        int transactionCount = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+
+        var sender = new Wallet(Amount.ofCoins(1), SignatureScheme.ED25519);
+        for (int i = 1; i < transactionCount; i++) {
+            WalletFactory.getInstance().fund(sender, Amount.ofCoins(1));
+        }
+        sender.setCoinSelector(CoinSelectors.largestFirst()); // one UTXO per transaction, no change
+        var recipient = new Wallet(1, SignatureScheme.ED25519);
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < transactionCount; i++) {
+            transactions.add(sender.createTransactions(recipient.getPublicKey(), Amount.ofCoins(1), 0));
+        }
+
+        var pools = new Mempool[NODE_COUNT];
+        var nodes = new P2PNode[NODE_COUNT];
+        try {
+            for (int i = 0; i < NODE_COUNT; i++) {
+                var pool = new Mempool();
+                pools[i] = pool;
+                nodes[i] = new P2PNode(new P2PHandler() {
+                    @Override
+                    public boolean onTransaction(Transaction tx) {
+                        return pool.add(tx);
+                    }
+
+                    @Override
+                    public boolean onBlock(Block block) {
+                        return false;
+                    }
+                });
+                nodes[i].start();
+            }
+            for (int i = 0; i < NODE_COUNT; i++) {
+                var next = nodes[(i + 1) % NODE_COUNT];
+                nodes[i].connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), next.getPort()));
+            }
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            for (var node : nodes) {
+                while (node.getPeerCount() < 2 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+
+            for (var tx : transactions) {
+                pools[0].add(tx);
+            }
+            long start = System.nanoTime();
+            for (var tx : transactions) {
+                nodes[0].announce(tx);
+            }
+            while (!allReceived(pools, transactionCount) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            for (int i = 0; i < NODE_COUNT; i++) {
+                System.out.println("Node " + i + " : " + pools[i].size() + " transactions, "
+                        + nodes[i].getMessagesSent() + " messages and " + nodes[i].getBytesSent() + " bytes sent");
+            }
+            System.out.printf("%d transactions relayed in %.3f s (%.0f tx/s)%n",
+                    transactionCount, seconds, transactionCount / seconds);
+        } finally {
+            for (var node : nodes) {
+                if (node != null) node.close();
+            }
+        }
+    }
+
+    private static boolean allReceived(Mempool[] pools, int transactionCount) {
+        for (var pool : pools) {
+            if (pool.size() < transactionCount) return false;
+        }
+        return true;
+    }
+}
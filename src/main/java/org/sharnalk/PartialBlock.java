@@ -0,0 +1,113 @@
+package org.sharnalk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A CompactBlock being rebuilt : the transactions found in the mempool by their short ID are in place,
+ * the missing ones have to be asked to the peer (getMissingIndexes) then given to fill().
+ */
+public class PartialBlock {
+    // In place of the transaction when two candidates have the same short ID. Not null : putIfAbsent takes a null
+    // value for no value, a third candidate would have replaced it
+    private static final Object COLLISION = new Object();
+
+    private final CompactBlock compactBlock;
+    private final Transaction[] transactions;
+
+    /**
+     * @param candidates The transactions which may be in the block, usually the whole mempool.
+     */
+    public PartialBlock(CompactBlock compactBlock, Collection<Transaction> candidates) {
+        this.compactBlock = compactBlock;
+        this.transactions = new Transaction[compactBlock.getTransactionCount()];
+
+        var byShortId = new HashMap<Long, Object>(candidates.size() * 2);
+        for (var tx : candidates) {
+            var shortId = CompactBlock.shortId(compactBlock.getSalt(), tx.getTxId());
+            // Two candidates with the same short ID : we can't know which one it is, it will be asked
+            if (byShortId.putIfAbsent(shortId, tx) != null) byShortId.put(shortId, COLLISION);
+        }
+        for (int i = 0; i < transactions.length; i++) {
+            // null for a collision too, so it is asked to the peer
+            transactions[i] = byShortId.get(compactBlock.getShortId(i)) instanceof Transaction tx ? tx : null;
+        }
+    }
+
+    /**
+     * Positions of the transactions not found, in ascending order
+     */
+    public int[] getMissingIndexes() {
+        int count = 0;
+        for (var tx : transactions) {
+            if (tx == null) count++;
+        }
+        var missing = new int[count];
+        int n = 0;
+        for (int i = 0; i < transactions.length; i++) {
+            if (transactions[i] == null) missing[n++] = i;
+        }
+        return missing;
+    }
+
+    public boolean isComplete() {
+        return getMissingIndexes().length == 0;
+    }
+
+    /**
+     * Put the transactions sent by the peer in place, in the order of getMissingIndexes()
+     */
+    public void fill(List<Transaction> missingTransactions) {
+        var missing = getMissingIndexes();
+        if (missing.length != missingTransactions.size()) {
+            throw new IllegalArgumentException(missing.length + " transactions missing, " + missingTransactions.size() + " given.");
+        }
+        for (int i = 0; i < missing.length; i++) {
+            transactions[missing[i]] = missingTransactions.get(i);
+        }
+    }
+
+    /**
+     * Forget all the transactions taken from the mempool, after a short ID collision : they are all asked again
+     */
+    public void clear() {
+        Arrays.fill(transactions, null);
+    }
+
+    /**
+     * The full block, once complete.
+     *
+     * @return null if the transactions don't match the merkle root of the header (short ID collision).
+     */
+    public Block toBlock() {
+        if (!isComplete()) throw new IllegalStateException("Transactions are missing.");
+        var block = new Block(compactBlock.getPreviousHashCode(), compactBlock.getTimestamp(),
+                compactBlock.getDifficultyBits(), compactBlock.getNonce());
+        for (var tx : transactions) {
+            block.addTransaction(tx);
+        }
+        if (!Arrays.equals(block.getMerkleRoot(), compactBlock.getMerkleRoot())) return null;
+        block.setProofOfWork(compactBlock.getNonce(), block.CalculateBlockHash());
+        return block;
+    }
+
+    public CompactBlock getCompactBlock() {
+        return compactBlock;
+    }
+
+    /**
+     * The transactions at these positions of a block, what the peer answers to a request of missing transactions
+     */
+    public static List<Transaction> select(Block block, int[] indexes) {
+        var all = block.getTransactions();
+        List<Transaction> selected = new ArrayList<>(indexes.length);
+        for (int index : indexes) {
+            if (index < 0 || index >= all.size()) throw new IllegalArgumentException("No transaction at " + index);
+            selected.add(all.get(index));
+        }
+        return selected;
+    }
+}
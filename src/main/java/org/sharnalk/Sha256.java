@@ -0,0 +1,175 @@
+package org.sharnalk;
+
+/**
+ * Small SHA-256 implementation which never allocates after construction.
+ * MessageDigest cannot give us its internal state, but mining needs it : the block header is 80 bytes,
+ * its first 64 bytes (previous hash and merkle root) never change while we search the nonce, so we compress
+ * them once (the "midstate") and every nonce attempt then only costs the compression of the last 16 bytes.
+ * An instance is not thread-safe, each thread must have its own.
+ */
+public final class Sha256 {
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+    private static final int[] IV = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+    public static final int BLOCK_SIZE = 64;
+    public static final int DIGEST_SIZE = 32;
+
+    private final int[] state = new int[8];
+    private final int[] w = new int[64];
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    private int position;  // bytes waiting in buffer
+    private long length;   // total bytes hashed
+
+    public Sha256() {
+        reset();
+    }
+
+    public Sha256 reset() {
+        System.arraycopy(IV, 0, state, 0, 8);
+        position = 0;
+        length = 0;
+        return this;
+    }
+
+    /**
+     * Restart from a state obtained with midstate(), as if processedBytes bytes had already been hashed
+     */
+    public Sha256 reset(int[] midstate, long processedBytes) {
+        if (processedBytes % BLOCK_SIZE != 0) throw new IllegalArgumentException("A midstate is always on a block boundary.");
+        System.arraycopy(midstate, 0, state, 0, 8);
+        position = 0;
+        length = processedBytes;
+        return this;
+    }
+
+    /**
+     * Copy of the internal state, only possible when all the data given so far fills complete blocks
+     */
+    public int[] midstate() {
+        if (position != 0) throw new IllegalStateException("Midstate is only available on a block boundary.");
+        return state.clone();
+    }
+
+    public Sha256 update(byte[] data) {
+        return update(data, 0, data.length);
+    }
+
+    public Sha256 update(byte[] data, int offset, int len) {
+        length += len;
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - position);
+            System.arraycopy(data, offset, buffer, position, n);
+            position += n;
+            offset += n;
+            len -= n;
+            if (position == BLOCK_SIZE) {
+                compress();
+                position = 0;
+            }
+        }
+        return this;
+    }
+
+    public Sha256 putInt(int value) {
+        putByte((byte) (value >>> 24));
+        putByte((byte) (value >>> 16));
+        putByte((byte) (value >>> 8));
+        return putByte((byte) value);
+    }
+
+    public Sha256 putLong(long value) {
+        putInt((int) (value >>> 32));
+        return putInt((int) value);
+    }
+
+    private Sha256 putByte(byte b) {
+        length++;
+        buffer[position++] = b;
+        if (position == BLOCK_SIZE) {
+            compress();
+            position = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Finish the hash and write the 32 bytes in out, starting at offset.
+     * The instance must be reset before being used again.
+     */
+    public void digest(byte[] out, int offset) {
+        long bitLength = length << 3;
+        buffer[position++] = (byte) 0x80;
+        if (position > BLOCK_SIZE - Long.BYTES) {
+            while (position < BLOCK_SIZE) buffer[position++] = 0;
+            compress();
+            position = 0;
+        }
+        while (position < BLOCK_SIZE - Long.BYTES) buffer[position++] = 0;
+        for (int i = 7; i >= 0; i--) {
+            buffer[position++] = (byte) (bitLength >>> (i * 8));
+        }
+        compress();
+        position = 0;
+        for (int i = 0; i < 8; i++) {
+            int v = state[i];
+            out[offset + i * 4] = (byte) (v >>> 24);
+            out[offset + i * 4 + 1] = (byte) (v >>> 16);
+            out[offset + i * 4 + 2] = (byte) (v >>> 8);
+            out[offset + i * 4 + 3] = (byte) v;
+        }
+    }
+
+    public byte[] digest() {
+        var out = new byte[DIGEST_SIZE];
+        digest(out, 0);
+        return out;
+    }
+
+    private void compress() {
+        for (int i = 0; i < 16; i++) {
+            int j = i * 4;
+            w[i] = (buffer[j] & 0xFF) << 24 | (buffer[j + 1] & 0xFF) << 16 | (buffer[j + 2] & 0xFF) << 8 | (buffer[j + 3] & 0xFF);
+        }
+        for (int i = 16; i < 64; i++) {
+            int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        int e = state[4], f = state[5], g = state[6], h = state[7];
+        for (int i = 0; i < 64; i++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = h + s1 + ch + K[i] + w[i];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+}
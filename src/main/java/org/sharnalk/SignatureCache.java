@@ -0,0 +1,146 @@
+package org.sharnalk;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the transactions whose signature has already been verified, keyed by (txId, hash of the signature).
+ * A transaction is verified when it enters the Mempool and again when the block containing it is validated,
+ * with the cache the second check costs two hashes instead of a full RSA verification.
+ * Only valid signatures are cached, an invalid one is verified again each time.
+ *
+ * The eviction is a segmented LRU : a new entry goes in the probation segment, a second hit moves it to the
+ * protected segment. A burst of transactions seen only once can only evict other one-time entries, not the ones
+ * used several times. The cache is split in independently locked shards so threads don't fight over one lock.
+ */
+public class SignatureCache {
+    public static final int DEFAULT_CAPACITY = 100_000;
+    private static final int SHARDS = 16;
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private static final class Shard {
+        private final int probationCapacity;
+        private final int protectedCapacity;
+        // Insertion order : the first entry is the least recently added
+        private final LinkedHashMap<HashKey, Boolean> probation = new LinkedHashMap<>();
+        // Access order : the first entry is the least recently used
+        private final LinkedHashMap<HashKey, Boolean> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+        Shard(int capacity) {
+            this.protectedCapacity = (int) (capacity * PROTECTED_RATIO);
+            this.probationCapacity = Math.max(1, capacity - protectedCapacity);
+        }
+
+        synchronized boolean get(HashKey key) {
+            if (protectedEntries.get(key) != null) return true;
+            if (probation.remove(key) == null) return false;
+            // Second hit : promote, the LRU protected entry goes back to probation
+            protectedEntries.put(key, Boolean.TRUE);
+            if (protectedEntries.size() > protectedCapacity) {
+                var eldest = removeFirst(protectedEntries.keySet().iterator());
+                addToProbation(eldest);
+            }
+            return true;
+        }
+
+        synchronized void put(HashKey key) {
+            if (protectedEntries.containsKey(key) || probation.containsKey(key)) return;
+            addToProbation(key);
+        }
+
+        private void addToProbation(HashKey key) {
+            probation.put(key, Boolean.TRUE);
+            if (probation.size() > probationCapacity) {
+                removeFirst(probation.keySet().iterator());
+            }
+        }
+
+        private static HashKey removeFirst(Iterator<HashKey> keys) {
+            var first = keys.next();
+            keys.remove();
+            return first;
+        }
+
+        synchronized int size() {
+            return probation.size() + protectedEntries.size();
+        }
+
+        synchronized void clear() {
+            probation.clear();
+            protectedEntries.clear();
+        }
+    }
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public SignatureCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SignatureCache(int capacity) {
+        int perShard = Math.max(1, capacity / SHARDS);
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(perShard);
+        }
+    }
+
+    private static HashKey key(Transaction tx) {
+        var key = new byte[2 * Sha256.DIGEST_SIZE];
+        System.arraycopy(tx.getTxId(), 0, key, 0, Sha256.DIGEST_SIZE);
+        System.arraycopy(Hashing.sha256(tx.getSignature()), 0, key, Sha256.DIGEST_SIZE, Sha256.DIGEST_SIZE);
+        return new HashKey(key);
+    }
+
+    private Shard shard(HashKey key) {
+        return shards[(key.hashCode() & 0x7FFFFFFF) % SHARDS];
+    }
+
+    /**
+     * True if the signature of this transaction has already been verified as valid
+     */
+    public boolean isVerified(Transaction tx) {
+        var key = key(tx);
+        if (shard(key).get(key)) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Remember that the signature of this transaction is valid
+     */
+    public void markVerified(Transaction tx) {
+        var key = key(tx);
+        shard(key).put(key);
+    }
+
+    /**
+     * Forget all the verified signatures, the hit and miss counts are kept
+     */
+    public void clear() {
+        for (var shard : shards) {
+            shard.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (var shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+}
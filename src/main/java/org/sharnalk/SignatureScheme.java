@@ -0,0 +1,90 @@
+package org.sharnalk;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * The signature algorithms a Wallet can use, all of them come with the JDK.
+ *  - RSA : 2048 bits keys, the historical choice of this project. Slow to generate and to sign, big keys (294 bytes)
+ *    and signatures (256 bytes).
+ *  - ECDSA : on the P-256 curve, fast to sign, small keys (91 bytes) and signatures (~72 bytes).
+ *  - ED25519 : fastest to sign and verify, smallest keys (44 bytes) and signatures (64 bytes).
+ * The Miner finds the scheme of a transaction from the algorithm of the sender public key.
+ */
+public enum SignatureScheme {
+    RSA("RSA", "SHA256withRSA"),
+    ECDSA("EC", "SHA256withECDSA"),
+    ED25519("Ed25519", "Ed25519");
+
+    public static final SignatureScheme DEFAULT = RSA;
+
+    private final String keyAlgorithm;
+    private final String signatureAlgorithm;
+    // Signature.getInstance is slow and a Signature is not thread-safe, so each thread keeps its own
+    private final ThreadLocal<Signature> signature;
+
+    SignatureScheme(String keyAlgorithm, String signatureAlgorithm) {
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.signature = ThreadLocal.withInitial(() -> {
+            try {
+                return Signature.getInstance(signatureAlgorithm);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(signatureAlgorithm + " is always available in the JDK.", e);
+            }
+        });
+    }
+
+    public KeyPair generateKeyPair() {
+        try {
+            var keyGen = KeyPairGenerator.getInstance(keyAlgorithm);
+            switch (this) {
+                case RSA:
+                    keyGen.initialize(2048);
+                    break;
+                case ECDSA:
+                    keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+                    break;
+                default:
+                    break; // Ed25519 has a single size
+            }
+            return keyGen.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(keyAlgorithm + " keys are always available in the JDK.", e);
+        }
+    }
+
+    /**
+     * The Signature of the current thread for this scheme, to init with initSign or initVerify before each use
+     */
+    public Signature signature() {
+        return signature.get();
+    }
+
+    /**
+     * Read back a key given by PublicKey.getEncoded()
+     */
+    public PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    public static SignatureScheme of(PublicKey publicKey) {
+        switch (publicKey.getAlgorithm()) {
+            case "RSA":
+                return RSA;
+            case "EC":
+                return ECDSA;
+            case "EdDSA":
+            case "Ed25519":
+                return ED25519;
+            default:
+                throw new IllegalArgumentException("Unsupported key algorithm " + publicKey.getAlgorithm());
+        }
+    }
+}
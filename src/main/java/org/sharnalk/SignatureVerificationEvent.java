@@ -0,0 +1,25 @@
+package org.sharnalk;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event of a signature really verified by the Miner (the SignatureCache hits don't emit it).
+ * Disabled by default, enable it in the recording settings : there is one per transaction.
+ */
+@Name("org.sharnalk.SignatureVerification")
+@Label("Signature Verification")
+@Category("Sharnalk")
+@Description("Verification of the signature of a transaction")
+@Enabled(false)
+class SignatureVerificationEvent extends Event {
+    @Label("Scheme")
+    String scheme;
+
+    @Label("Valid")
+    boolean valid;
+}
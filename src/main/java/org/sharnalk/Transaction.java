@@ -1,7 +1,5 @@
 package org.sharnalk;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.util.ArrayList;
@@ -24,56 +22,81 @@ public class Transaction {
     private List<UTXO> inputs = new ArrayList<>();
     private List<UTXO> outputs = new ArrayList<>();
     private long timestamp;
-    private byte[] data;
+    private byte[] data; // canonical encoding, computed once
     private byte[] signature;
+    private byte[] txId; // double SHA-256 of data, computed once
+    private byte[] senderKeyHash;
+    private byte[] recipientKeyHash;
+    private byte[] senderKeyBytes; // X.509 encoding of the sender key, computed once
 
     public Transaction(PublicKey senderPublicKey, PublicKey recipientPublicKey) {
+        this(senderPublicKey, recipientPublicKey, System.currentTimeMillis());
+    }
+
+    Transaction(PublicKey senderPublicKey, PublicKey recipientPublicKey, long timestamp) {
         this.senderPublicKey = senderPublicKey;
         this.recipientPublicKey = recipientPublicKey;
-        this.timestamp = System.currentTimeMillis();
+        this.timestamp = timestamp;
+    }
+
+    // Used by BinaryCodec to rebuild a decoded transaction, the recipient is only known by its key hash
+    Transaction(PublicKey senderPublicKey, byte[] recipientKeyHash, long timestamp) {
+        this.senderPublicKey = senderPublicKey;
+        this.recipientKeyHash = recipientKeyHash;
+        this.timestamp = timestamp;
     }
 
     public void addToOutputs(UTXO utxo) {
         outputs.add(utxo);
+        this.data = null;
+        this.txId = null;
     }
     public void addToInputs(UTXO utxo) {
         this.inputs.add(utxo);
+        this.data = null;
+        this.txId = null;
     }
 
+    /**
+     * Canonical encoding of the transaction, the txId is its hash :
+     * senderKeyHash (20) | recipientKeyHash (20) | timestamp (8) | input count (4) | inputs (see UTXO.getBytes)
+     * | output count (4) | outputs (amount (8) | keyHash (20))
+     * The outputs are written without their txId (it is the hash of this) and their index (it is their position),
+     * so the encoding is the same before and after markOutputsWithTxId, and it is built once.
+     */
     public byte[] getTransactionDataBytes() {
-        byte[] senderPublicKeyBytes = senderPublicKey.getEncoded();
-        byte[] recipientBytes = recipientPublicKey.getEncoded();
-
-        var outputStream = new ByteArrayOutputStream ();
-
-        try{
-            outputStream.write(senderPublicKeyBytes);
-            outputStream.write(recipientBytes);
-
-            var buffer = ByteBuffer.allocate(Long.BYTES);
-            buffer.putLong(timestamp);
-            outputStream.write(buffer.array());
-
-            for (var utxo : inputs) {
-                    outputStream.write(utxo.getBytes());
-            }
-            if (outputs.stream().anyMatch(utxo -> utxo.getTxId() != null)){
-                for (var utxo : outputs) {
-                    outputStream.write(utxo.getBytes());
-                }
-            }
-
-        } catch (IOException e) {
-            throw new RuntimeException("Error in generation of data to sign.", e);
-        }
-        this.data = outputStream.toByteArray();
-        // return of hash data
+        if (data == null) data = encodeData();
         return data;
     }
 
-    protected void markOutputsWithTxId(byte[] txId){
+    // Builds the canonical encoding each time, getTransactionDataBytes() keeps it
+    byte[] encodeData() {
+        int size = 2 * Hashing.KEY_HASH_SIZE + Long.BYTES + 2 * Integer.BYTES
+                + outputs.size() * (Long.BYTES + Hashing.KEY_HASH_SIZE);
+        for (var utxo : inputs) {
+            size += utxo.getBytesSize();
+        }
+        var buffer = ByteBuffer.allocate(size);
+        buffer.put(getSenderKeyHash());
+        buffer.put(getRecipientKeyHash());
+        buffer.putLong(timestamp);
+        buffer.putInt(inputs.size());
+        for (var utxo : inputs) {
+            utxo.writeTo(buffer);
+        }
+        buffer.putInt(outputs.size());
         for (var utxo : outputs) {
-            utxo.setTxId(txId);
+            buffer.putLong(utxo.getAmount());
+            buffer.put(utxo.getKeyHash());
+        }
+        return buffer.array();
+    }
+
+    protected void markOutputsWithTxId(byte[] txId){
+        // Each output gets its position, (txId, index) identifies it in the UTXO set
+        for (int i = 0; i < outputs.size(); i++) {
+            outputs.get(i).setOutputIndex(i);
+            outputs.get(i).setTxId(txId);
         }
     }
 
@@ -89,11 +112,68 @@ public class Transaction {
         return outputs;
     }
 
+    /**
+     * What the inputs give and the outputs don't take back, it goes to the miner.
+     * Negative if the outputs spend more than the inputs, such a transaction is not valid.
+     *
+     * @throws ArithmeticException If the amounts overflow.
+     */
+    public long getFee() {
+        return Amount.subtract(getInputTotal(), getOutputTotal());
+    }
+
+    public long getInputTotal() {
+        long total = 0;
+        for (var input : inputs) total = Amount.add(total, input.getAmount());
+        return total;
+    }
+
+    public long getOutputTotal() {
+        long total = 0;
+        for (var output : outputs) total = Amount.add(total, output.getAmount());
+        return total;
+    }
+
     public PublicKey getSenderPublicKey() {
         return senderPublicKey;
     }
 
-    public byte[] getData() {return data;}
+    /**
+     * null for a decoded transaction, only the key hash of the recipient is sent
+     */
+    public PublicKey getRecipientPublicKey() {
+        return recipientPublicKey;
+    }
+
+    public byte[] getSenderKeyHash() {
+        if (senderKeyHash == null) senderKeyHash = Hashing.keyHash(senderPublicKey);
+        return senderKeyHash;
+    }
+
+    byte[] getSenderKeyBytes() {
+        if (senderKeyBytes == null) senderKeyBytes = senderPublicKey.getEncoded();
+        return senderKeyBytes;
+    }
+
+    public byte[] getRecipientKeyHash() {
+        if (recipientKeyHash == null) recipientKeyHash = Hashing.keyHash(recipientPublicKey);
+        return recipientKeyHash;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public byte[] getData() {return getTransactionDataBytes();}
+
+    /**
+     * Id of the transaction : double SHA-256 of the canonical encoding, always 32 bytes.
+     * It is the txId of the outputs, the signed payload and the leaf of the block merkle tree.
+     */
+    public byte[] getTxId() {
+        if (txId == null) txId = Hashing.doubleSha256(getTransactionDataBytes());
+        return txId;
+    }
 
     public byte[] getSignature() {return signature;}
 }
\ No newline at end of file
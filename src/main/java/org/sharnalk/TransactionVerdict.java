@@ -0,0 +1,16 @@
+package org.sharnalk;
+
+/**
+ * Result of the verification of one transaction in a batch, see Miner.verifyTransactions
+ */
+public enum TransactionVerdict {
+    VALID,
+    // The signature does not match the sender public key
+    INVALID_SIGNATURE,
+    // One of the inputs is not in the UTXO set (already spent or never existed)
+    MISSING_INPUTS,
+    // One of the inputs is already spent by a transaction placed before in the same batch
+    CONFLICT,
+    // The outputs hold more than the inputs, or an input amount is not the one of the UTXO spent
+    INVALID_AMOUNTS
+}
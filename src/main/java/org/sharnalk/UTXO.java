@@ -5,53 +5,109 @@ import java.security.PublicKey;
 
 
 public class UTXO {
-    private double amount;
+    private final long amount; // in units, see Amount
     private PublicKey publicKey;
     private int outputIndex;
     private byte[] txId; //ID of link Transaction
+    private OutPoint outPoint; // built once txId is known
+    private byte[] keyHash; // computed once, see Hashing.keyHash
 
-    public UTXO(double amount, PublicKey publicKey) {
+    public UTXO(long amount, PublicKey publicKey) {
+        if (amount < 0) throw new IllegalArgumentException("Amount can't be negative.");
         this.amount = amount;
         this.publicKey = publicKey;
     }
 
+    // Used by BinaryCodec and OffHeapUTXOTable : the owner is only known by its key hash
+    UTXO(long amount, byte[] keyHash) {
+        if (amount < 0) throw new IllegalArgumentException("Amount can't be negative.");
+        if (keyHash.length != Hashing.KEY_HASH_SIZE) throw new IllegalArgumentException("Invalid key hash size.");
+        this.amount = amount;
+        this.keyHash = keyHash;
+    }
+
     //Here I get the size in Bytes of all of my argument to allocate
     // the size of the ByteBuffer in getBytes()
-    private int getBytesSize(){
-     return Double.BYTES
+    int getBytesSize(){
+     return Long.BYTES
              + Integer.BYTES
-             + txId.length
-             + publicKey.getEncoded().length;
+             + 1 + txId.length
+             + Hashing.KEY_HASH_SIZE;
     }
 
+    /**
+     * Canonical bytes of the UTXO : amount (8) | outputIndex (4) | txId length (1) | txId | keyHash (20).
+     * The txId is 32 bytes (see Transaction.getTxId), so the size doesn't grow along the chain of spends.
+     */
     public byte[] getBytes() {
         // Allocate a ByteBuffer to get the exact size of byte[]
         var buffer = ByteBuffer.allocate(getBytesSize());
-        buffer.putDouble(amount);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putLong(amount);
         buffer.putInt(outputIndex);
+        buffer.put((byte) txId.length);
         buffer.put(txId);
-        buffer.put(publicKey.getEncoded());
-
-        return buffer.array();
+        buffer.put(getKeyHash());
     }
 
     //Getters
-    public double getAmount() {
+    public long getAmount() {
         return amount;
     }
 
     public void setOutputIndex(int outputIndex){
         this.outputIndex = outputIndex;
+        this.outPoint = null;
+    }
+
+    public int getOutputIndex() {
+        return outputIndex;
     }
 
+    /**
+     * null for a UTXO read back from its binary form, only its key hash is stored
+     */
     public PublicKey getPublicKey() {
         return publicKey;
     }
 
+    public byte[] getKeyHash() {
+        if (keyHash == null) keyHash = Hashing.keyHash(publicKey);
+        return keyHash;
+    }
+
     public byte[] getTxId() {return txId;}
 
     public void setTxId(byte[] txId) {
         if (this.txId != null) throw new UnsupportedOperationException("tx Id can be set only once.");
         this.txId = txId;
     }
+
+    /**
+     * The txId and output index of this UTXO, this is what identifies it
+     */
+    public OutPoint getOutPoint() {
+        if (txId == null) throw new IllegalStateException("tx Id is not set yet.");
+        if (outPoint == null) outPoint = new OutPoint(txId, outputIndex);
+        return outPoint;
+    }
+
+    // Two UTXO are the same if they come from the same output of the same transaction
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof UTXO)) return false;
+        var other = (UTXO) o;
+        if (txId == null || other.txId == null) return false;
+        return getOutPoint().equals(other.getOutPoint());
+    }
+
+    @Override
+    public int hashCode() {
+        return txId == null ? System.identityHashCode(this) : getOutPoint().hashCode();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,283 @@
+package org.sharnalk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The set of all the UTXOs of the blockchain, keyed by OutPoint.
+ * It is split in stripes, each one with its own lock, so threads working on different UTXOs don't wait for each other
+ * and many readers can look at the same stripe together.
+ * spend() removes the inputs and adds the outputs of a transaction atomically : either all the inputs are
+ * still unspent and the whole transaction is applied, or nothing changes. Two transactions spending the same
+ * UTXO at the same time can't both succeed, and the outputs can't hold more than the inputs.
+ * spend(Transaction) also checks that the UTXOs spent belong to the sender of the transaction.
+ */
+public class UTXOSet {
+    private static final int DEFAULT_STRIPES = 64;
+
+    private static final class Stripe {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final HashMap<OutPoint, UTXO> utxos = new HashMap<>();
+    }
+
+    private final Stripe[] stripes;
+    private final AtomicInteger size = new AtomicInteger();
+
+    public UTXOSet() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public UTXOSet(int stripeCount) {
+        if (Integer.bitCount(stripeCount) != 1) throw new IllegalArgumentException("Stripe count must be a power of two.");
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private int stripeIndex(OutPoint outPoint) {
+        int h = outPoint.hashCode();
+        h ^= (h >>> 16); // the low bits choose the stripe, mix the high ones in
+        return h & (stripes.length - 1);
+    }
+
+    public boolean add(UTXO utxo) {
+        var outPoint = utxo.getOutPoint();
+        var stripe = stripes[stripeIndex(outPoint)];
+        stripe.lock.writeLock().lock();
+        try {
+            if (stripe.utxos.putIfAbsent(outPoint, utxo) != null) return false;
+            size.incrementAndGet();
+            return true;
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    public UTXO get(OutPoint outPoint) {
+        long start = System.nanoTime();
+        var stripe = stripes[stripeIndex(outPoint)];
+        stripe.lock.readLock().lock();
+        try {
+            return stripe.utxos.get(outPoint);
+        } finally {
+            stripe.lock.readLock().unlock();
+            Metrics.getInstance().getUtxoLookup().record(System.nanoTime() - start);
+        }
+    }
+
+    public boolean contains(UTXO utxo) {
+        return utxo.getTxId() != null && get(utxo.getOutPoint()) != null;
+    }
+
+    public boolean containsAll(List<UTXO> utxos) {
+        for (var utxo : utxos) {
+            if (!contains(utxo)) return false;
+        }
+        return true;
+    }
+
+    public UTXO remove(OutPoint outPoint) {
+        var stripe = stripes[stripeIndex(outPoint)];
+        stripe.lock.writeLock().lock();
+        try {
+            var removed = stripe.utxos.remove(outPoint);
+            if (removed != null) size.decrementAndGet();
+            return removed;
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Apply the transaction, only if all the UTXOs it spends belong to its sender (their key hash is the one of the sender)
+     *
+     * @see #spend(List, List)
+     */
+    public List<UTXO> spend(Transaction tx) {
+        return spend(tx.getInputs(), tx.getOutputs(), tx.getSenderKeyHash());
+    }
+
+    /**
+     * Spend all the inputs and add all the outputs, or do nothing if one input is not (or no more) in the set,
+     * if an input doesn't say the same amount and owner as the UTXO in the set, if the outputs hold more than the inputs,
+     * or if an output is already in the set (it would be lost).
+     * The stripes involved are locked in ascending order so two spends can't deadlock.
+     *
+     * @return The UTXOs removed from the set, in the order of the inputs (they are what an undo must put back),
+     * null if the transaction has not been applied.
+     */
+    public List<UTXO> spend(List<UTXO> inputs, List<UTXO> outputs) {
+        return spend(inputs, outputs, null);
+    }
+
+    // owner : key hash all the spent UTXOs must have, null when the caller has checked it
+    private List<UTXO> spend(List<UTXO> inputs, List<UTXO> outputs, byte[] owner) {
+        if (inputs.isEmpty()) return null;
+        long outputTotal = 0;
+        try {
+            for (var output : outputs) {
+                outputTotal = Amount.add(outputTotal, output.getAmount());
+            }
+        } catch (ArithmeticException e) {
+            return null;
+        }
+        var inputPoints = new ArrayList<OutPoint>(inputs.size());
+        for (var input : inputs) {
+            if (input.getTxId() == null) return null;
+            inputPoints.add(input.getOutPoint());
+        }
+        // The same UTXO twice in the inputs would be counted twice
+        if (inputPoints.size() > 1 && new HashSet<>(inputPoints).size() != inputPoints.size()) return null;
+
+        int[] locked = lockStripes(inputPoints, outputs);
+        try {
+            long inputTotal = 0;
+            var spent = new ArrayList<UTXO>(inputs.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                var outPoint = inputPoints.get(i);
+                var stored = stripes[stripeIndex(outPoint)].utxos.get(outPoint);
+                if (stored == null || !sameOutput(stored, inputs.get(i))) return null;
+                if (owner != null && !Arrays.equals(stored.getKeyHash(), owner)) return null;
+                // Saturates instead of overflowing, the outputs can't hold more than Long.MAX_VALUE anyway
+                inputTotal = (inputTotal > Long.MAX_VALUE - stored.getAmount()) ? Long.MAX_VALUE : inputTotal + stored.getAmount();
+                spent.add(stored);
+            }
+            if (outputTotal > inputTotal) return null;
+            if (!canAdd(outputs, inputPoints)) return null;
+            for (var outPoint : inputPoints) {
+                stripes[stripeIndex(outPoint)].utxos.remove(outPoint);
+            }
+            for (var output : outputs) {
+                var outPoint = output.getOutPoint();
+                stripes[stripeIndex(outPoint)].utxos.put(outPoint, output);
+            }
+            size.addAndGet(outputs.size() - inputPoints.size());
+            return spent;
+        } finally {
+            unlockStripes(locked);
+        }
+    }
+
+    /**
+     * Undo a spend() : remove the outputs and put the inputs back, or do nothing if one output is not in the set
+     * (it has been spent since, the transactions have to be undone from the last one) or if one input is in it.
+     *
+     * @return true if the transaction has been undone.
+     */
+    public boolean unspend(List<UTXO> inputs, List<UTXO> outputs) {
+        var inputPoints = new ArrayList<OutPoint>(inputs.size());
+        for (var input : inputs) {
+            inputPoints.add(input.getOutPoint());
+        }
+        int[] locked = lockStripes(inputPoints, outputs);
+        try {
+            var outputPoints = new ArrayList<OutPoint>(outputs.size());
+            for (var output : outputs) {
+                var outPoint = output.getOutPoint();
+                if (!stripes[stripeIndex(outPoint)].utxos.containsKey(outPoint)) return false;
+                outputPoints.add(outPoint);
+            }
+            if (!canAdd(inputs, outputPoints)) return false;
+            for (var outPoint : outputPoints) {
+                stripes[stripeIndex(outPoint)].utxos.remove(outPoint);
+            }
+            for (int i = 0; i < inputs.size(); i++) {
+                var outPoint = inputPoints.get(i);
+                stripes[stripeIndex(outPoint)].utxos.put(outPoint, inputs.get(i));
+            }
+            size.addAndGet(inputs.size() - outputs.size());
+            return true;
+        } finally {
+            unlockStripes(locked);
+        }
+    }
+
+    /**
+     * True if none of the UTXOs is in the set, apart from the ones about to be removed, and none is there twice.
+     * Called with the stripes locked.
+     */
+    private boolean canAdd(List<UTXO> added, List<OutPoint> removed) {
+        var outPoints = new HashSet<OutPoint>(added.size() * 2);
+        var leaving = new HashSet<>(removed);
+        for (var utxo : added) {
+            var outPoint = utxo.getOutPoint();
+            if (!outPoints.add(outPoint)) return false;
+            if (!leaving.contains(outPoint) && stripes[stripeIndex(outPoint)].utxos.containsKey(outPoint)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * An input is only the claim of a transaction : it must name the amount and the owner of the UTXO in the set
+     */
+    static boolean sameOutput(UTXO stored, UTXO input) {
+        return stored.getAmount() == input.getAmount() && Arrays.equals(stored.getKeyHash(), input.getKeyHash());
+    }
+
+    private int[] lockStripes(List<OutPoint> inputs, List<UTXO> outputs) {
+        int[] indexes = new int[inputs.size() + outputs.size()];
+        int n = 0;
+        for (var outPoint : inputs) indexes[n++] = stripeIndex(outPoint);
+        for (var output : outputs) indexes[n++] = stripeIndex(output.getOutPoint());
+        Arrays.sort(indexes);
+        // Remove the duplicates, a stripe is locked only once
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || indexes[unique - 1] != indexes[i]) indexes[unique++] = indexes[i];
+        }
+        indexes = Arrays.copyOf(indexes, unique);
+        for (int index : indexes) {
+            stripes[index].lock.writeLock().lock();
+        }
+        return indexes;
+    }
+
+    private void unlockStripes(int[] indexes) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            stripes[indexes[i]].lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copy of all the UTXOs at one instant. All the stripes are read locked while the references are copied,
+     * so the copy is consistent but the writers only wait for the copy, not for what the caller does with it.
+     */
+    public List<UTXO> snapshot() {
+        for (var stripe : stripes) {
+            stripe.lock.readLock().lock();
+        }
+        try {
+            var copy = new ArrayList<UTXO>(size.get());
+            for (var stripe : stripes) {
+                copy.addAll(stripe.utxos.values());
+            }
+            return copy;
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].lock.readLock().unlock();
+            }
+        }
+    }
+
+    public void clear() {
+        for (var stripe : stripes) {
+            stripe.lock.writeLock().lock();
+            try {
+                size.addAndGet(-stripe.utxos.size());
+                stripe.utxos.clear();
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+}
@@ -0,0 +1,202 @@
+package org.sharnalk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * On disk snapshots of the UTXO set, so a node does not replay the whole chain to rebuild it at startup.
+ * A snapshot is tagged with the height of the last block it contains (utxo-0000001234.snap) :
+ * at startup the latest one is loaded and only the blocks stored after it are replayed.
+ * The hash of that block is kept too : the BlockStore may have cut a torn tail at opening, a snapshot taken
+ * after a block which is not in the store anymore (or was replaced) is not used, an older one is.
+ *
+ * File format : magic (4) | version (1) | height (4) | block hash (32) | count (8) | count * (length (4) | UTXO (BinaryCodec)) | CRC32 (8)
+ * A snapshot is written in a temporary file then renamed, so a crash never leaves a half written snapshot.
+ */
+public class UTXOSnapshotManager implements Closeable {
+    private static final int MAGIC = 0x5554584F; // "UTXO"
+    private static final byte VERSION = 2;
+    private static final String PREFIX = "utxo-";
+    private static final String SUFFIX = ".snap";
+    private static final int SNAPSHOTS_KEPT = 2; // the previous one is kept in case the last one is damaged
+
+    private final Path directory;
+    private final ExecutorService writer;
+
+    public UTXOSnapshotManager(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "utxo-snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Take a snapshot of the set as it is now and write it in the background.
+     * Only the copy of the references is done on the calling thread, the validation can go on while the file is written.
+     * Call it right after the block at this height has been applied to the set.
+     *
+     * @param blockHash The hash of the block at this height.
+     * @return The path of the snapshot, once written.
+     */
+    public Future<Path> snapshotAsync(UTXOSet utxoSet, int height, byte[] blockHash) {
+        var utxos = utxoSet.snapshot();
+        return writer.submit((Callable<Path>) () -> write(utxos, height, blockHash));
+    }
+
+    public Path write(List<UTXO> utxos, int height, byte[] blockHash) throws IOException {
+        if (blockHash == null || blockHash.length != Sha256.DIGEST_SIZE) throw new IllegalArgumentException("A block hash is needed.");
+        var target = directory.resolve(String.format("%s%010d%s", PREFIX, height, SUFFIX));
+        var temporary = directory.resolve(target.getFileName() + ".tmp");
+        var crc = new CRC32();
+        try (var out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16), crc))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(height);
+            out.write(blockHash);
+            out.writeLong(utxos.size());
+            var buffer = ByteBuffer.allocate(256);
+            for (var utxo : utxos) {
+                int size = BinaryCodec.utxoSize(utxo);
+                if (buffer.capacity() < size) buffer = ByteBuffer.allocate(size);
+                buffer.clear();
+                BinaryCodec.writeUTXO(utxo, buffer);
+                out.writeInt(size);
+                out.write(buffer.array(), 0, size);
+            }
+            out.writeLong(crc.getValue()); // value taken before its own bytes go through the checksum
+        }
+        try (var channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        deleteOldSnapshots();
+        return target;
+    }
+
+    private void deleteOldSnapshots() throws IOException {
+        var snapshots = listSnapshots();
+        for (int i = 0; i < snapshots.size() - SNAPSHOTS_KEPT; i++) {
+            Files.deleteIfExists(snapshots.get(i));
+        }
+    }
+
+    /**
+     * Snapshots from the oldest to the newest
+     */
+    private List<Path> listSnapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> {
+                        var name = p.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .sorted() // the height is zero padded, the name order is the height order
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    /**
+     * Load the newest readable snapshot in the set. The set is emptied first.
+     * The UTXOs are read one by one from the file, the snapshot is never loaded as a whole in memory.
+     *
+     * @return The height of the snapshot, -1 if there is no usable snapshot (the set is then empty).
+     */
+    public int loadLatest(UTXOSet utxoSet) throws IOException {
+        return loadLatest(utxoSet, null);
+    }
+
+    /**
+     * Same as loadLatest(utxoSet), but only a snapshot of a block which is in the store at the same height is used
+     */
+    private int loadLatest(UTXOSet utxoSet, BlockStore blockStore) throws IOException {
+        var snapshots = listSnapshots();
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            utxoSet.clear();
+            try {
+                return load(snapshots.get(i), utxoSet, blockStore);
+            } catch (IOException | IllegalArgumentException | BufferUnderflowException e) {
+                // Damaged, unreadable (a bad record is a format error of BinaryCodec) or not on the chain, try the previous one
+                utxoSet.clear();
+            }
+        }
+        return -1;
+    }
+
+    private int load(Path snapshot, UTXOSet utxoSet, BlockStore blockStore) throws IOException {
+        var crc = new CRC32();
+        try (var raw = new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16);
+             var in = new DataInputStream(new CheckedInputStream(raw, crc))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) throw new IOException("Not a UTXO snapshot : " + snapshot);
+            int height = in.readInt();
+            var blockHash = new byte[Sha256.DIGEST_SIZE];
+            in.readFully(blockHash);
+            if (blockStore != null && (height < 0 || height >= blockStore.getHeight()
+                    || !Arrays.equals(blockStore.getBlockHash(height), blockHash))) {
+                throw new IOException("The snapshot " + snapshot + " is not on the stored chain.");
+            }
+            long count = in.readLong();
+            var bytes = new byte[256];
+            for (long i = 0; i < count; i++) {
+                int size = in.readInt();
+                if (size < 0) throw new IOException("Invalid UTXO size in " + snapshot);
+                if (bytes.length < size) bytes = new byte[size];
+                in.readFully(bytes, 0, size);
+                utxoSet.add(BinaryCodec.readUTXO(ByteBuffer.wrap(bytes, 0, size)));
+            }
+            long expected = crc.getValue();
+            // Read under the checksum stream, the CRC itself is not part of the checked bytes
+            if (new DataInputStream(raw).readLong() != expected) throw new IOException("Bad checksum in " + snapshot);
+            return height;
+        }
+    }
+
+    /**
+     * Rebuild the UTXO set at startup : load the latest snapshot whose block is in the store, then apply the blocks
+     * stored after it. The replayed blocks are trusted, they have been validated before being stored.
+     *
+     * @return The height of the last block applied, -1 if the chain is empty.
+     */
+    public int restore(UTXOSet utxoSet, BlockStore blockStore) throws IOException {
+        int height = loadLatest(utxoSet, blockStore);
+        for (int h = height + 1; h < blockStore.getHeight(); h++) {
+            for (var tx : blockStore.getBlock(h).getTransactions()) {
+                if (utxoSet.spend(tx) == null) {
+                    throw new IOException("Block " + h + " spends a missing UTXO, the snapshot does not match the chain.");
+                }
+            }
+            height = h;
+        }
+        return height;
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+    }
+}
@@ -0,0 +1,61 @@
+package org.sharnalk;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * What a connected block changed in the UTXO set, kept to disconnect it during a reorganization.
+ * Only the net change is kept : an output created and spent in the same block is in neither list,
+ * so undoing is just removing the created outpoints and putting the spent UTXOs back, in any order.
+ */
+public final class UndoRecord {
+    private final List<UTXO> spent;
+    private final List<OutPoint> created;
+
+    private UndoRecord(List<UTXO> spent, List<OutPoint> created) {
+        this.spent = spent;
+        this.created = created;
+    }
+
+    /**
+     * Build the record of a list of transactions applied in this order
+     *
+     * @param removed For each transaction, the UTXOs UTXOSet.spend removed for it. They are the ones put back,
+     * not the inputs of the transaction which are only what it claims to spend.
+     */
+    public static UndoRecord of(List<Transaction> transactions, List<List<UTXO>> removed) {
+        var created = new LinkedHashMap<OutPoint, Boolean>();
+        List<UTXO> spent = new ArrayList<>();
+        for (int i = 0; i < transactions.size(); i++) {
+            var tx = transactions.get(i);
+            for (var utxo : removed.get(i)) {
+                if (created.remove(utxo.getOutPoint()) == null) spent.add(utxo);
+            }
+            for (var output : tx.getOutputs()) {
+                created.put(output.getOutPoint(), Boolean.TRUE);
+            }
+        }
+        return new UndoRecord(spent, new ArrayList<>(created.keySet()));
+    }
+
+    /**
+     * Put the UTXO set back as it was before the block
+     */
+    public void undo(UTXOSet utxoSet) {
+        for (var outPoint : created) {
+            utxoSet.remove(outPoint);
+        }
+        for (var utxo : spent) {
+            utxoSet.add(utxo);
+        }
+    }
+
+    public List<UTXO> getSpent() {
+        return spent;
+    }
+
+    public List<OutPoint> getCreated() {
+        return created;
+    }
+}
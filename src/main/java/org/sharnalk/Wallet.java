@@ -2,8 +2,6 @@ package org.sharnalk;
 
 import java.nio.ByteBuffer;
 import java.security.*;
-import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 import java.util.UUID;
 
@@ -13,14 +11,25 @@ import java.util.UUID;
  * the publicKey is his footprint and privateKey permit it to send money in transaction
  * The privateKey always represent the sender in a transaction, it's the only way to validate it.
  * The publicKey permit to verify the signature made by the Transaction by everyone
+ *
+ * A wallet can be used by many threads : the UTXOs come back from the thread connecting the blocks
+ * (see WalletFactory.connectBlock) while another one creates transactions, so the UTXO methods are synchronized.
  */
 public class Wallet {
+    private final SignatureScheme signatureScheme;
     private PublicKey publicKey;
     private PrivateKey privateKey;
-    private List<UTXO> unspentOutputs = new ArrayList<>(); // List of unspent UTXO
+    private Address address;
+    private final WalletUTXOIndex unspentOutputs = new WalletUTXOIndex(); // unspent UTXO sorted by amount
+    private CoinSelector coinSelector = CoinSelectors.branchAndBound();
 
-    public Wallet(double initialAmount) throws Exception {
-        GenerateKeys(); // Generates the RSA key pair (public/private)
+    public Wallet(long initialAmount) throws Exception {
+        this(initialAmount, SignatureScheme.DEFAULT);
+    }
+
+    public Wallet(long initialAmount, SignatureScheme signatureScheme) throws Exception {
+        this.signatureScheme = signatureScheme;
+        GenerateKeys(); // Takes the key pair (public/private) from the KeyPool
 
         // Create an initial UTXO with the initial amount and a randomly generated txId
         var initialUTXO = new UTXO(initialAmount,this.publicKey);
@@ -28,7 +37,6 @@ public class Wallet {
         Miner.getInstance().setGlobalUnspentOutputs(initialUTXO);
         unspentOutputs.add(initialUTXO);
         WalletFactory.getInstance().addWallet(this);
-        System.out.println("This is your PublicKey : " + Base64.getEncoder().encodeToString(publicKey.getEncoded()));
     }
 
     /**
@@ -43,23 +51,14 @@ public class Wallet {
         return bb.array();
     }
     /**
-     * Generates an RSA key pair (2048 bits) for the wallet.
+     * Gets a key pair of the wallet signature scheme, already generated in background by the KeyPool.
      * This method sets the publicKey and privateKey fields.
-     *
-     * @throws NoSuchAlgorithmException
      */
-    private void GenerateKeys() throws NoSuchAlgorithmException {
-        var keyGen = KeyPairGenerator.getInstance("RSA");
-        keyGen.initialize(2048, new SecureRandom());
-        var keyPair = keyGen.generateKeyPair();
+    private void GenerateKeys() {
+        var keyPair = KeyPool.forScheme(signatureScheme).take();
         this.privateKey = keyPair.getPrivate();
         this.publicKey = keyPair.getPublic();
-    }
-
-    class OutputData{
-        List<UTXO> selectedOutputs = new ArrayList<>();
-        double totalOutputs = 0;
-        int indexOutputs = 0;
+        this.address = Address.of(publicKey);
     }
 
     /**
@@ -68,25 +67,41 @@ public class Wallet {
      * The transaction is signed using the wallet's private key.
      *
      * @param recipientPublicKey The public key of the recipient.
-     * @param amount The amount to be sent.
+     * @param amount The amount to be sent, in units (see Amount).
      * @return The signed Transaction object.
      * @throws Exception If the wallet does not have enough unspent outputs to cover the amount.
      */
-    public Transaction createTransactions(PublicKey recipientPublicKey, double amount) throws Exception {
-
-        if (getAllUnspentOutputs() < amount) throw new Exception("Funds insufficient.");
-
-        var outputData = new OutputData();
+    public Transaction createTransactions(PublicKey recipientPublicKey, long amount) throws Exception {
+        return createTransactions(recipientPublicKey, amount, 0);
+    }
 
-        // Select UTXOs from the wallet to cover the transaction amount
-        selectOutputs(outputData, amount);
+    /**
+     * Same as createTransactions(recipientPublicKey, amount) but leaves a fee to the miner :
+     * the fee is the part of the inputs which is not given back in the outputs.
+     * A higher fee makes the transaction go first in the Mempool.
+     *
+     * @param fee The amount left to the miner, in units.
+     */
+    public synchronized Transaction createTransactions(PublicKey recipientPublicKey, long amount, long fee) throws Exception {
+        if (amount <= 0) throw new IllegalArgumentException("Amount must be positive.");
+        if (fee < 0) throw new IllegalArgumentException("Fee can't be negative.");
+        long totalAmount = Amount.add(amount, fee);
+
+        if (unspentOutputs.getBalance() < totalAmount) throw new Exception("Funds insufficient.");
+
+        // Select UTXOs from the wallet to cover the transaction amount and the fee
+        var selectedOutputs = selectOutputs(totalAmount);
+        long totalOutputs = 0;
+        for (var utxo : selectedOutputs) {
+            totalOutputs = Amount.add(totalOutputs, utxo.getAmount());
+        }
 
         // Create a new Transaction with the sender's and recipient's public keys
         var transaction = new Transaction(this.publicKey, recipientPublicKey);
 
         // If the total selected UTXOs exceed the amount, create an output for the change
-        if (outputData.totalOutputs > amount){
-            var exchangeAmount = outputData.totalOutputs - amount;
+        if (totalOutputs > totalAmount){
+            var exchangeAmount = Amount.subtract(totalOutputs, totalAmount);
             transaction.addToOutputs(new UTXO(exchangeAmount,this.publicKey));
         }
 
@@ -94,62 +109,61 @@ public class Wallet {
         transaction.addToOutputs(new UTXO(amount, recipientPublicKey));
 
         // Add selected UTXOs as inputs for the transaction
-        for (var utxo : outputData.selectedOutputs) {
+        for (var utxo : selectedOutputs) {
             transaction.addToInputs(utxo);
         }
 
-        // Generate the byte representation of the transaction data
-        byte[] txDataBytes = transaction.getTransactionDataBytes();
+        // The transaction ID is the hash of the canonical encoding, computed once
+        byte[] txId = transaction.getTxId();
 
-        // Mark the transaction's outputs with the transaction ID (derived from the hash of txDataBytes)
-        transaction.markOutputsWithTxId(txDataBytes);
+        // Mark the transaction's outputs with the transaction ID
+        transaction.markOutputsWithTxId(txId);
 
-        txDataBytes = transaction.getTransactionDataBytes();
-
-        // Sign the transaction with the sender's private key
-        transaction.setSignature(signData(txDataBytes));
+        // Sign the transaction ID with the sender's private key, it commits to all the transaction data
+        transaction.setSignature(signData(txId));
 
         return transaction;
     }
 
     /**
-     * Get the sum of all unspent amount
+     * Get the sum of all unspent amount, in units
      */
-    private double getAllUnspentOutputs(){
-        double sumUnspentOutputs = 0;
-        for (var utxo : unspentOutputs){
-            sumUnspentOutputs += utxo.getAmount();
-        }
-        return sumUnspentOutputs;
+    public synchronized long getBalance(){
+        return unspentOutputs.getBalance();
     }
 
     /**
-     * Selects the sender's outputs to match the amount or more
+     * Selects the sender's outputs to match the amount or more with the coin selector,
+     * and removes them from the unspent outputs
      */
-    private void selectOutputs (OutputData outputData, double amount){
-        for (var utxo : new ArrayList<>(unspentOutputs)){
-            //Here we count the amount of UTXOs we have to take from the wallet
-            outputData.totalOutputs += utxo.getAmount();
-            outputData.selectedOutputs.add(utxo);
-            utxo.setOutputIndex(outputData.indexOutputs++);
-            if (outputData.totalOutputs >= amount) break;
+    private List<UTXO> selectOutputs(long amount) throws Exception {
+        var selected = coinSelector.select(unspentOutputs, amount);
+        if (selected == null) throw new Exception("Funds insufficient.");
+        for (var utxo : selected) {
+            unspentOutputs.remove(utxo);
         }
-        // Remove selected UTXOs from the list of unspent outputs
-        unspentOutputs.removeAll(outputData.selectedOutputs);
+        return selected;
+    }
+
+    /**
+     * Change the way UTXOs are chosen for the next transactions, see CoinSelectors
+     */
+    public synchronized void setCoinSelector(CoinSelector coinSelector) {
+        this.coinSelector = coinSelector;
     }
 
     /**
-     * Signs the transaction using the sender's private key (RSA with SHA-256).
-     * The transaction data is hashed and then signed.
+     * Signs the transaction using the sender's private key and the signature scheme of the wallet (RSA with SHA-256 by default).
+     * The transaction ID is signed, it is already a digest of the transaction data.
      *
-     * @param data The byte array representing the transaction data.
+     * @param data The transaction ID.
      * @return The signature of the transaction.
      * @throws SignatureException
      * @throws NoSuchAlgorithmException
      * @throws InvalidKeyException
      */
     private byte[] signData(byte[] data) throws SignatureException, NoSuchAlgorithmException, InvalidKeyException {
-        var signature = Signature.getInstance("SHA256withRSA");
+        var signature = signatureScheme.signature();
         signature.initSign(privateKey); // Initialize signature with private key
         signature.update(data);         // We add the data to sign
         return signature.sign();        // Generate the digital signature
@@ -159,17 +173,30 @@ public class Wallet {
         return publicKey;
     }
 
-    protected void addUTXO(UTXO utxo){
+    public Address getAddress() {
+        return address;
+    }
+
+    public SignatureScheme getSignatureScheme() {
+        return signatureScheme;
+    }
+
+    protected synchronized void addUTXO(UTXO utxo){
         unspentOutputs.add(utxo);
     }
 
+    // An output of a block taken back by a reorganization
+    synchronized void removeUTXO(UTXO utxo) {
+        unspentOutputs.remove(utxo);
+    }
+
     /**
      * Used for see all outputs of Wallet, used only in console
      */
-    public String getAllUnspentOutputsConsole(){
+    public synchronized String getAllUnspentOutputsConsole(){
         StringBuilder result = new StringBuilder();
         for (var utxo : unspentOutputs) {
-            result.append("UTXOs : ").append(utxo.getAmount());
+            result.append("UTXOs : ").append(Amount.format(utxo.getAmount()));
         }
         return result.toString();
     }
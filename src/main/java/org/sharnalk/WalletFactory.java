@@ -1,54 +1,208 @@
 package org.sharnalk;
 
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Base64;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class WalletFactory {
+/**
+ * Registry of the wallets and of what happens to every address.
+ * Wallets are keyed by their Address. For each address (a local wallet or not) the balance and the list of
+ * transactions are kept up to date when a block is connected, and taken back when it is disconnected by a
+ * reorganization, so a balance or history query is a map lookup, never a scan of the UTXOs or of the blocks.
+ * It can be used by many threads at once, and listen to a BlockTree (see BlockTree.addListener).
+ */
+public class WalletFactory implements ChainListener {
 
-    private static WalletFactory instance;
+    // Created by the JVM the first time getInstance() is called, the class loading makes it thread-safe
+    private static class Holder {
+        private static final WalletFactory INSTANCE = new WalletFactory();
+    }
+
+    /**
+     * Balance and transaction history of one address
+     */
+    private static final class AddressIndex {
+        private long balance; // in units
+        private final List<byte[]> history = new ArrayList<>(); // txIds, oldest first
+
+        synchronized void add(long amount) {
+            balance = Amount.add(balance, amount);
+        }
+
+        synchronized void record(byte[] txId) {
+            history.add(txId);
+        }
+
+        // The disconnected blocks are the last ones, so it is looked for from the end
+        synchronized void unrecord(byte[] txId) {
+            for (int i = history.size() - 1; i >= 0; i--) {
+                if (Arrays.equals(history.get(i), txId)) {
+                    history.remove(i);
+                    return;
+                }
+            }
+        }
+
+        synchronized long getBalance() {
+            return balance;
+        }
+
+        synchronized List<byte[]> getHistory() {
+            return new ArrayList<>(history);
+        }
+    }
 
-    public HashMap<PublicKey, Wallet> wallets;
+    private final ConcurrentHashMap<Address, Wallet> wallets;
+    private final ConcurrentHashMap<Address, AddressIndex> indexes;
 
     private WalletFactory() {
-        this.wallets = new HashMap<>();
+        this.wallets = new ConcurrentHashMap<>();
+        this.indexes = new ConcurrentHashMap<>();
     }
 
     public static WalletFactory getInstance(){
-        if(instance == null) instance = new WalletFactory();
-        return instance;
+        return Holder.INSTANCE;
     }
 
     public void addWallet(Wallet wallet) {
-        wallets.put(wallet.getPublicKey(), wallet);
+        if (wallets.putIfAbsent(wallet.getAddress(), wallet) != null) return;
+        // The initial funds of a wallet don't come from a block
+        index(wallet.getAddress()).add(wallet.getBalance());
+    }
+
+    /**
+     * Give a wallet a new UTXO which doesn't come from a block, like its initial funds.
+     * The UTXO goes in the UTXO set, in the wallet and in the balance of its address.
+     */
+    public UTXO fund(Wallet wallet, long amount) {
+        var utxo = new UTXO(amount, wallet.getPublicKey());
+        utxo.setTxId(Wallet.asBytes(UUID.randomUUID()));
+        Miner.getInstance().getGlobalUnspentOutputs().add(utxo);
+        wallet.addUTXO(utxo);
+        index(wallet.getAddress()).add(amount);
+        return utxo;
+    }
+
+    private AddressIndex index(Address address) {
+        return indexes.computeIfAbsent(address, a -> new AddressIndex());
+    }
+
+    /**
+     * Public key of a known wallet from its key hash
+     */
+    public PublicKey resolvePublicKey(byte[] keyHash) {
+        var wallet = wallets.get(new Address(keyHash));
+        return wallet == null ? null : wallet.getPublicKey();
+    }
+
+    public Wallet getWallet(Address address) {
+        return wallets.get(address);
     }
 
     public Wallet getWallet(PublicKey publicKey) {
-        return wallets.get(publicKey);
+        return getWallet(Address.of(publicKey));
     }
 
     public int getWalletSize(){
         return wallets.size();
     }
 
+    /**
+     * Update the balances and histories with a block added to the chain, and give its outputs to the local wallets
+     */
+    public void connectBlock(Block block) {
+        for (var tx : block.getTransactions()) {
+            var involved = new LinkedHashSet<Address>();
+            for (var input : tx.getInputs()) {
+                var address = new Address(input.getKeyHash());
+                index(address).add(Math.negateExact(input.getAmount()));
+                involved.add(address);
+                removeUTXOFromWallet(input); // already done by the wallet which made it, unless it was given back by a reorganization
+            }
+            for (var output : tx.getOutputs()) {
+                var address = new Address(output.getKeyHash());
+                index(address).add(output.getAmount());
+                involved.add(address);
+                addUTXOToWallet(output);
+            }
+            for (var address : involved) {
+                index(address).record(tx.getTxId());
+            }
+        }
+    }
+
+    /**
+     * Take back connectBlock for a block removed from the chain : the balances and histories are as before it,
+     * the outputs leave the local wallets and the inputs go back to them.
+     */
+    public void disconnectBlock(Block block) {
+        var transactions = block.getTransactions();
+        for (int t = transactions.size() - 1; t >= 0; t--) {
+            var tx = transactions.get(t);
+            var involved = new LinkedHashSet<Address>();
+            for (var output : tx.getOutputs()) {
+                var address = new Address(output.getKeyHash());
+                index(address).add(Math.negateExact(output.getAmount()));
+                involved.add(address);
+                removeUTXOFromWallet(output);
+            }
+            for (var input : tx.getInputs()) {
+                var address = new Address(input.getKeyHash());
+                index(address).add(input.getAmount());
+                involved.add(address);
+                addUTXOToWallet(input);
+            }
+            for (var address : involved) {
+                index(address).unrecord(tx.getTxId());
+            }
+        }
+    }
+
+    @Override
+    public void blockConnected(Block block, int height) {
+        connectBlock(block);
+    }
+
+    @Override
+    public void blockDisconnected(Block block, int height) {
+        disconnectBlock(block);
+    }
+
+    public long getBalance(Address address) {
+        var index = indexes.get(address);
+        return index == null ? 0 : index.getBalance();
+    }
+
+    /**
+     * Ids of the transactions involving this address, oldest first
+     */
+    public List<byte[]> getHistory(Address address) {
+        var index = indexes.get(address);
+        return index == null ? List.of() : index.getHistory();
+    }
+
     public void addUTXOToWallet(UTXO utxo) {
-        var publicKey = utxo.getPublicKey();
-        var wallet = getWallet(publicKey);
-        if (wallet == null) System.out.println("Wallet : \n"+ publicKey.getEncoded() +" \n---not found");
+        var address = new Address(utxo.getKeyHash());
+        var wallet = getWallet(address);
+        if (wallet == null) return; // not one of our wallets
         wallet.addUTXO(utxo);
-        System.out.println(utxo.getAmount() + " BTC added to wallet : " + publicKey.getEncoded());
     }
-    public PublicKey getPbkFromConsole(String pbkStr) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        byte[] pbkBytes = Base64.getDecoder().decode(pbkStr);
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(pbkBytes);
-        return keyFactory.generatePublic(keySpec);
+
+    private void removeUTXOFromWallet(UTXO utxo) {
+        var wallet = getWallet(new Address(utxo.getKeyHash()));
+        if (wallet != null) wallet.removeUTXO(utxo);
     }
-    public void getAllWalletsConsole(){
-        wallets.values().forEach(e -> System.out.println("Wallet : " + Base64.getEncoder().encodeToString(e.getPublicKey().getEncoded()) + "\n" + e.getAllUnspentOutputsConsole() + "\n"));
+
+    /**
+     * The local wallets, a read only view
+     */
+    public Collection<Wallet> getWallets() {
+        return Collections.unmodifiableCollection(wallets.values());
     }
 }
@@ -0,0 +1,90 @@
+package org.sharnalk;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * The UTXOs of a wallet, sorted by amount, with the balance kept up to date.
+ * Adding, removing and finding a UTXO is O(log n) and the balance is O(1), so a wallet holding many UTXOs
+ * does not scan them all for each transaction. The coin selection walks the amounts from either end, see CoinSelector.
+ */
+public class WalletUTXOIndex implements Iterable<UTXO> {
+    // By amount, then by outpoint so two UTXOs of the same amount are both kept
+    private static final Comparator<UTXO> BY_AMOUNT = Comparator
+            .comparingLong(UTXO::getAmount)
+            .thenComparing(UTXO::getTxId, Arrays::compare)
+            .thenComparingInt(UTXO::getOutputIndex);
+
+    private final TreeSet<UTXO> byAmount = new TreeSet<>(BY_AMOUNT);
+    private final HashMap<OutPoint, UTXO> byOutPoint = new HashMap<>();
+    private long balance;
+
+    public boolean add(UTXO utxo) {
+        if (byOutPoint.putIfAbsent(utxo.getOutPoint(), utxo) != null) return false;
+        byAmount.add(utxo);
+        balance = Amount.add(balance, utxo.getAmount());
+        return true;
+    }
+
+    public boolean remove(UTXO utxo) {
+        var removed = byOutPoint.remove(utxo.getOutPoint());
+        if (removed == null) return false;
+        byAmount.remove(removed);
+        balance = Amount.subtract(balance, removed.getAmount());
+        return true;
+    }
+
+    public boolean contains(UTXO utxo) {
+        return byOutPoint.containsKey(utxo.getOutPoint());
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public int size() {
+        return byOutPoint.size();
+    }
+
+    /**
+     * The smallest UTXO with at least this amount, null if there is none
+     */
+    public UTXO smallestAtLeast(long amount) {
+        return byAmount.ceiling(probe(amount));
+    }
+
+    /**
+     * The UTXOs with an amount lower or equal to this one, from the largest to the smallest
+     */
+    public Iterator<UTXO> descendingUpTo(long amount) {
+        if (amount == Long.MAX_VALUE) return descending();
+        NavigableSet<UTXO> head = byAmount.headSet(probe(amount + 1), false);
+        return head.descendingIterator();
+    }
+
+    public Iterator<UTXO> ascending() {
+        return byAmount.iterator();
+    }
+
+    public Iterator<UTXO> descending() {
+        return byAmount.descendingIterator();
+    }
+
+    @Override
+    public Iterator<UTXO> iterator() {
+        return ascending();
+    }
+
+    // Sorts before every real UTXO of this amount : empty txId and lowest index
+    private static UTXO probe(long amount) {
+        var probe = new UTXO(amount, (PublicKey) null);
+        probe.setOutputIndex(Integer.MIN_VALUE);
+        probe.setTxId(new byte[0]);
+        return probe;
+    }
+}